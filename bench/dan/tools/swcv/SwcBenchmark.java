@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for each phase of swcv on a (synthetic) SWC:
+ * 
+ *     zipOpen               locate and open catalog.xml (SwcArchive)
+ *     catalogParse          inflate and stream the catalog (CatalogParser)
+ *     modelBuild            new Swc(file): parse, intern, build the graph
+ *     packageOrderParse     new PackageOrder(reader)
+ *     validation            fail-fast validatePackageOrder
+ *     validationAll         --all-violations validatePackageOrder
+ *     reportRendering       packageReport to a discarding stream
+ * 
+ * Unless swcFile is set, a SWC is generated with SyntheticSwc from the
+ * other parameters into a temporary file. Parameters are set with -p:
+ * 
+ *     java -jar target/benchmarks.jar SwcBenchmark -p scripts=50000
+ *     java -jar target/benchmarks.jar SwcBenchmark -p swcFile=my.swc \
+ *         -p orderFile=my.pkgorder
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SwcBenchmark {
+    private static final PrintStream NULL_OUT = new PrintStream(
+            new OutputStream() {
+                public void write(int b) {
+                }
+
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+
+    @Param("100")
+    public int packages;
+
+    @Param("10000")
+    public int scripts;
+
+    @Param("8")
+    public int fanOut;
+
+    @Param("0.3")
+    public double externalRatio;
+
+    @Param("1")
+    public long seed;
+
+    @Param("")
+    public String swcFile;
+
+    @Param("")
+    public String orderFile;
+
+    private File file;
+    private File tmp;
+    private String order;
+    private Swc swc;
+    private PackageOrder packageOrder;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        if (swcFile.length() == 0) {
+            SyntheticSwc generator = new SyntheticSwc(packages, scripts,
+                    fanOut, externalRatio, seed);
+
+            tmp = File.createTempFile("swcv-bench", ".swc");
+            generator.writeSwc(tmp.getPath());
+            file = tmp;
+            order = generator.getPackageOrder();
+        } else if (orderFile.length() != 0) {
+            file = new File(swcFile);
+            order = new String(Files.readAllBytes(new File(orderFile)
+                    .toPath()), "UTF-8");
+        } else {
+            throw new IllegalArgumentException(
+                    "swcFile needs an orderFile parameter");
+        }
+
+        swc = new Swc(file.getPath());
+        packageOrder = new PackageOrder(new StringReader(order));
+        pool = new ForkJoinPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+
+        if (tmp != null) {
+            tmp.delete();
+        }
+    }
+
+    @Benchmark
+    public long zipOpen() throws Exception {
+        InputStream in = SwcArchive.openCatalog(file);
+
+        in.close();
+        return 1;
+    }
+
+    @Benchmark
+    public long catalogParse() throws Exception {
+        final long[] count = new long[1];
+        InputStream in = SwcArchive.openCatalog(file);
+
+        try {
+            new CatalogParser(new CatalogHandler() {
+                public void script(String name, long mod, String defId,
+                        List<String> depIds) {
+                    count[0] += depIds.size();
+                }
+            }).parse(in);
+        } finally {
+            in.close();
+        }
+
+        return count[0];
+    }
+
+    @Benchmark
+    public long modelBuild() throws Exception {
+        return new Swc(file.getPath()).getPackageCount();
+    }
+
+    @Benchmark
+    public long packageOrderParse() throws Exception {
+        return new PackageOrder(new StringReader(order)).getRank("x");
+    }
+
+    @Benchmark
+    public long validation() throws Exception {
+        return SwcValidator.validatePackageOrder(swc, packageOrder, null,
+                false, false, null, NULL_OUT);
+    }
+
+    @Benchmark
+    public long validationAll() throws Exception {
+        return SwcValidator.validatePackageOrder(swc, packageOrder, null,
+                true, false, pool, NULL_OUT);
+    }
+
+    @Benchmark
+    public long reportRendering() throws Exception {
+        return SwcValidator.packageReport(swc, PackageReport.TEXT, NULL_OUT);
+    }
+}
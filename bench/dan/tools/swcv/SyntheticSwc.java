@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes deterministic synthetic SWCs for benchmarking.
+ * 
+ * The SWC has a real zipped catalog.xml (and an empty library.swf) with
+ * the given number of packages (p0..pN-1) and scripts. Each script has
+ * fanOut deps. A dep is external (a symbol in one of a few flash.* packages)
+ * with probability externalRatio; otherwise it is a class defined by the
+ * SWC in the same or a lower numbered package. The package order
+ * "p0, p1, ..., pN-1" therefore passes, and every dependency is checked.
+ * 
+ * The same arguments and seed always produce the same catalog. The mod of
+ * every script is derived from the seed, so catalogs of different seeds
+ * look entirely changed to --incremental.
+ * 
+ * Usage: SyntheticSwc <swcfile> [--packages n] [--scripts n] [--fan-out n]
+ *                     [--external ratio] [--seed n] [--pkg-order-file file]
+ */
+public class SyntheticSwc {
+    private static final String[] EXTERNAL_PACKAGES = { "flash.display",
+            "flash.events", "flash.utils", "default" };
+
+    private int packages;
+    private int scripts;
+    private int fanOut;
+    private double externalRatio;
+    private long seed;
+
+    public SyntheticSwc(int packages, int scripts, int fanOut,
+            double externalRatio, long seed) {
+        this.packages = packages;
+        this.scripts = Math.max(scripts, packages);
+        this.fanOut = fanOut;
+        this.externalRatio = externalRatio;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String swcFile = null;
+        String orderFile = null;
+        int packages = 100;
+        int scripts = 10000;
+        int fanOut = 8;
+        double externalRatio = 0.3;
+        long seed = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--packages".equals(args[i])) {
+                packages = Integer.parseInt(args[++i]);
+            } else if ("--scripts".equals(args[i])) {
+                scripts = Integer.parseInt(args[++i]);
+            } else if ("--fan-out".equals(args[i])) {
+                fanOut = Integer.parseInt(args[++i]);
+            } else if ("--external".equals(args[i])) {
+                externalRatio = Double.parseDouble(args[++i]);
+            } else if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[++i]);
+            } else if ("--pkg-order-file".equals(args[i])) {
+                orderFile = args[++i];
+            } else {
+                swcFile = args[i];
+            }
+        }
+
+        if (swcFile == null) {
+            System.out.println("Usage: SyntheticSwc <swcfile> [--packages n]"
+                    + " [--scripts n] [--fan-out n] [--external ratio]"
+                    + " [--seed n] [--pkg-order-file file]");
+            System.exit(1);
+        }
+
+        SyntheticSwc generator = new SyntheticSwc(packages, scripts, fanOut,
+                externalRatio, seed);
+
+        generator.writeSwc(swcFile);
+
+        if (orderFile != null) {
+            Writer w = new BufferedWriter(new FileWriter(orderFile));
+
+            try {
+                w.write(generator.getPackageOrder());
+            } finally {
+                w.close();
+            }
+        }
+    }
+
+    /**
+     * Returns a package order that the generated SWC passes.
+     */
+    public String getPackageOrder() {
+        StringBuilder sb = new StringBuilder();
+
+        for (int p = 0; p < packages; p++) {
+            if (p > 0) {
+                sb.append(",\n");
+            }
+
+            sb.append(packageName(p));
+        }
+
+        return sb.toString();
+    }
+
+    public void writeSwc(String swcFile) throws Exception {
+        ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(
+                swcFile));
+
+        try {
+            zip.putNextEntry(new ZipEntry("catalog.xml"));
+
+            Writer w = new BufferedWriter(new OutputStreamWriter(zip, "UTF-8"));
+
+            writeCatalog(w);
+            w.flush();
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("library.swf"));
+            zip.closeEntry();
+        } finally {
+            zip.close();
+        }
+    }
+
+    private void writeCatalog(Writer w) throws Exception {
+        Random random = new Random(seed);
+
+        w.write("<?xml version=\"1.0\" encoding =\"utf-8\"?>\n");
+        w.write("<swc xmlns=\"http://www.adobe.com/flash/swccatalog/9\">\n");
+        w.write("  <versions>\n    <swc version=\"1.2\" />\n  </versions>\n");
+        w.write("  <libraries>\n    <library path=\"library.swf\">\n");
+
+        for (int s = 0; s < scripts; s++) {
+            int p = packageOf(s);
+
+            w.write("      <script name=\"" + packageName(p).replace('.', '/')
+                    + "/C" + s + "\" mod=\"" + (1300000000000L + seed)
+                    + "\" >\n");
+            w.write("        <def id=\"" + className(s) + "\" />\n");
+
+            for (int d = 0; d < fanOut; d++) {
+                String dep;
+
+                if (random.nextDouble() < externalRatio) {
+                    String pkg = EXTERNAL_PACKAGES[random
+                            .nextInt(EXTERNAL_PACKAGES.length)];
+                    int n = random.nextInt(200);
+
+                    dep = "default".equals(pkg) ? "Object" + n : pkg + ":E" + n;
+                } else {
+                    // A script in the same or a lower numbered package.
+                    int target = random.nextInt(firstScriptOf(p + 1));
+                    dep = className(target);
+                }
+
+                w.write("        <dep id=\"" + dep + "\" type=\"e\" />\n");
+            }
+
+            w.write("      </script>\n");
+        }
+
+        w.write("      <digests />\n    </library>\n  </libraries>\n");
+        w.write("  <files />\n</swc>\n");
+    }
+
+    // Scripts are spread evenly over the packages, in package order.
+    private int packageOf(int script) {
+        return (int) ((long) script * packages / scripts);
+    }
+
+    private int firstScriptOf(int p) {
+        return (int) (((long) p * scripts + packages - 1) / packages);
+    }
+
+    private String className(int script) {
+        return packageName(packageOf(script)) + ":C" + script;
+    }
+
+    private static String packageName(int p) {
+        return "com.synthetic.p" + p;
+    }
+}
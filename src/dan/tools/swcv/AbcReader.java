@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads the class definitions and referenced names of an ABC (ActionScript
+ * bytecode) block, ex. one from SwfReader.
+ * 
+ * Only the constant pool and the instance infos are parsed; method bodies
+ * and everything after the instance infos are never looked at. Strings are
+ * recorded as offsets into the buffer and decoded only when a class name or
+ * reference needs them.
+ */
+class AbcReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Namespace kinds
+    private static final int PACKAGE_NAMESPACE = 0x16;
+    private static final int PACKAGE_INTERNAL_NS = 0x17;
+
+    // Multiname kinds
+    private static final int QNAME = 0x07;
+    private static final int QNAME_A = 0x0D;
+    private static final int RTQNAME = 0x0F;
+    private static final int RTQNAME_A = 0x10;
+    private static final int RTQNAME_L = 0x11;
+    private static final int RTQNAME_LA = 0x12;
+    private static final int MULTINAME = 0x09;
+    private static final int MULTINAME_A = 0x0E;
+    private static final int MULTINAME_L = 0x1B;
+    private static final int MULTINAME_LA = 0x1C;
+    private static final int TYPE_NAME = 0x1D;
+
+    private static final int METHOD_HAS_OPTIONAL = 0x08;
+    private static final int METHOD_HAS_PARAM_NAMES = 0x80;
+    private static final int INSTANCE_PROTECTED_NS = 0x08;
+    private static final int TRAIT_METADATA = 0x04;
+
+    private ByteBuffer abc;
+
+    private int[] stringOffsets;
+    private int[] stringLengths;
+    private String[] strings;
+
+    private int[] namespaceKinds;
+    private int[] namespaceNames;
+
+    private int[][] namespaceSets;
+
+    // For each multiname: its name string and its namespace (QName) or
+    // namespace set (Multiname), or 0.
+    private int[] multinameNames;
+    private int[] multinameNamespaces;
+    private int[] multinameNamespaceSets;
+
+    private int[] classNames;
+
+    public AbcReader(ByteBuffer abc) {
+        this.abc = abc;
+
+        // minor and major version
+        abc.getShort();
+        abc.getShort();
+
+        readConstantPool();
+        skipMethods();
+        skipMetadata();
+        readInstances();
+    }
+
+    public int getClassCount() {
+        return classNames.length;
+    }
+
+    /**
+     * Returns the catalog id (see SymbolTable) of a package level class.
+     * Private classes, ex. helper classes after a package block, are not
+     * counted.
+     */
+    public String getClassId(int i) {
+        return getId(classNames[i], multinameNamespaces[classNames[i]]);
+    }
+
+    public int getMultinameCount() {
+        return multinameNames.length;
+    }
+
+    /**
+     * Adds the catalog ids a multiname may refer to: its package qualified
+     * name for a QName, or one per package namespace in its namespace set
+     * for a Multiname. Run time qualified names have none.
+     */
+    public void addIds(int multiname, ArrayList<String> ids) {
+        if (multinameNames[multiname] == 0) {
+            return;
+        }
+
+        int ns = multinameNamespaces[multiname];
+        String id;
+
+        if (ns != 0) {
+            id = getId(multiname, ns);
+
+            if (id != null) {
+                ids.add(id);
+            }
+        } else if (multinameNamespaceSets[multiname] != 0) {
+            int[] set = namespaceSets[multinameNamespaceSets[multiname]];
+
+            for (int i = 0; i < set.length; i++) {
+                id = getId(multiname, set[i]);
+
+                if (id != null) {
+                    ids.add(id);
+                }
+            }
+        }
+    }
+
+    private String getId(int multiname, int ns) {
+        int kind = namespaceKinds[ns];
+
+        if (kind != PACKAGE_NAMESPACE && kind != PACKAGE_INTERNAL_NS) {
+            return null;
+        }
+
+        String name = getString(multinameNames[multiname]);
+        String pkg = getString(namespaceNames[ns]);
+
+        return (pkg.length() == 0) ? name : pkg + ":" + name;
+    }
+
+    private String getString(int i) {
+        if (i == 0) {
+            return "";
+        }
+
+        if (strings[i] == null) {
+            byte[] b = new byte[stringLengths[i]];
+            ByteBuffer view = abc.duplicate();
+
+            view.position(stringOffsets[i]);
+            view.get(b);
+            strings[i] = new String(b, UTF8);
+        }
+
+        return strings[i];
+    }
+
+    private void readConstantPool() {
+        int n;
+
+        // int and uint
+        for (int t = 0; t < 2; t++) {
+            n = readU30();
+
+            for (int i = 1; i < n; i++) {
+                readU30();
+            }
+        }
+
+        // double
+        n = readU30();
+
+        if (n > 1) {
+            skip((n - 1) * 8);
+        }
+
+        n = Math.max(readU30(), 1);
+        stringOffsets = new int[n];
+        stringLengths = new int[n];
+        strings = new String[n];
+
+        for (int i = 1; i < n; i++) {
+            int length = readU30();
+
+            stringOffsets[i] = abc.position();
+            stringLengths[i] = length;
+            skip(length);
+        }
+
+        n = Math.max(readU30(), 1);
+        namespaceKinds = new int[n];
+        namespaceNames = new int[n];
+
+        for (int i = 1; i < n; i++) {
+            namespaceKinds[i] = abc.get() & 0xff;
+            namespaceNames[i] = readU30();
+        }
+
+        n = Math.max(readU30(), 1);
+        namespaceSets = new int[n][];
+
+        for (int i = 1; i < n; i++) {
+            int[] set = new int[readU30()];
+
+            for (int j = 0; j < set.length; j++) {
+                set[j] = readU30();
+            }
+
+            namespaceSets[i] = set;
+        }
+
+        n = Math.max(readU30(), 1);
+        multinameNames = new int[n];
+        multinameNamespaces = new int[n];
+        multinameNamespaceSets = new int[n];
+
+        for (int i = 1; i < n; i++) {
+            int kind = abc.get() & 0xff;
+
+            switch (kind) {
+            case QNAME:
+            case QNAME_A:
+                multinameNamespaces[i] = readU30();
+                multinameNames[i] = readU30();
+                break;
+            case RTQNAME:
+            case RTQNAME_A:
+                readU30();
+                break;
+            case RTQNAME_L:
+            case RTQNAME_LA:
+                break;
+            case MULTINAME:
+            case MULTINAME_A:
+                multinameNames[i] = readU30();
+                multinameNamespaceSets[i] = readU30();
+                break;
+            case MULTINAME_L:
+            case MULTINAME_LA:
+                readU30();
+                break;
+            case TYPE_NAME:
+                // ex. Vector.<T>: the parameters are multinames of their
+                // own, so only the encoding needs to be skipped.
+                readU30();
+
+                for (int j = readU30(); j > 0; j--) {
+                    readU30();
+                }
+
+                break;
+            default:
+                throw new IllegalStateException("Unknown multiname kind "
+                        + kind + ".");
+            }
+        }
+    }
+
+    private void skipMethods() {
+        for (int n = readU30(); n > 0; n--) {
+            int paramCount = readU30();
+
+            // return type, param types, name
+            for (int i = 0; i < paramCount + 2; i++) {
+                readU30();
+            }
+
+            int flags = abc.get() & 0xff;
+
+            if ((flags & METHOD_HAS_OPTIONAL) != 0) {
+                for (int i = readU30(); i > 0; i--) {
+                    readU30();
+                    abc.get();
+                }
+            }
+
+            if ((flags & METHOD_HAS_PARAM_NAMES) != 0) {
+                for (int i = 0; i < paramCount; i++) {
+                    readU30();
+                }
+            }
+        }
+    }
+
+    private void skipMetadata() {
+        for (int n = readU30(); n > 0; n--) {
+            readU30();
+
+            // key and value of each item
+            for (int i = readU30() * 2; i > 0; i--) {
+                readU30();
+            }
+        }
+    }
+
+    private void readInstances() {
+        int n = readU30();
+        int count = 0;
+
+        classNames = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            int name = readU30();
+
+            // super name
+            readU30();
+
+            int flags = abc.get() & 0xff;
+
+            if ((flags & INSTANCE_PROTECTED_NS) != 0) {
+                readU30();
+            }
+
+            for (int j = readU30(); j > 0; j--) {
+                readU30();
+            }
+
+            // iinit
+            readU30();
+            skipTraits();
+
+            if (getId(name, multinameNamespaces[name]) != null) {
+                classNames[count++] = name;
+            }
+        }
+
+        classNames = Arrays.copyOf(classNames, count);
+    }
+
+    private void skipTraits() {
+        for (int n = readU30(); n > 0; n--) {
+            // name
+            readU30();
+
+            int kind = abc.get() & 0xff;
+
+            switch (kind & 0x0f) {
+            case 0:
+            case 6:
+                // slot id, type name, value index and kind
+                readU30();
+                readU30();
+
+                if (readU30() != 0) {
+                    abc.get();
+                }
+
+                break;
+            case 1:
+            case 2:
+            case 3:
+            case 4:
+            case 5:
+                // slot or disp id, then the method, class or function
+                readU30();
+                readU30();
+                break;
+            default:
+                throw new IllegalStateException("Unknown trait kind "
+                        + (kind & 0x0f) + ".");
+            }
+
+            if (((kind >> 4) & TRAIT_METADATA) != 0) {
+                for (int i = readU30(); i > 0; i--) {
+                    readU30();
+                }
+            }
+        }
+    }
+
+    private void skip(int n) {
+        abc.position(abc.position() + n);
+    }
+
+    /**
+     * Reads a variable length encoded u30 (also used for the s32 and u32
+     * pool values, which are only skipped).
+     */
+    private int readU30() {
+        int result = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = abc.get();
+
+            result |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Validates many SWCs in one JVM (--batch).
+ * 
+ * The batch manifest lists one SWC per line, followed by the package order
+ * file to validate it with, separated by whitespace. If a line contains a
+ * tab, the two are separated by its first tab instead, so that paths may
+ * contain spaces. Blank lines and lines starting with '#' are ignored.
+ * Relative paths are relative to the directory of the manifest.
+ * 
+ *     # swc                 package order
+ *     core/bin/core.swc     core.pkgorder
+ *     ui/bin/ui.swc         ui.pkgorder
+ * 
+ * SWCs are parsed and validated concurrently on a fixed size thread pool.
+ * A package order file is parsed once, no matter how many SWCs use it. The
+ * output of each SWC is collected separately and printed, in manifest
+ * order, after a result table.
+ */
+class BatchValidator {
+    private int threads;
+    private boolean allViolations;
+    private CatalogCache cache;
+    private ConcurrentHashMap<String, Future<DependencyRules>> packageOrders;
+
+    /**
+     * @param cache the catalog cache to load SWCs through, or null
+     */
+    public BatchValidator(int threads, boolean allViolations,
+            CatalogCache cache) {
+        this.threads = threads;
+        this.allViolations = allViolations;
+        this.cache = cache;
+        this.packageOrders = new ConcurrentHashMap<String, Future<DependencyRules>>();
+    }
+
+    /**
+     * Validates the SWCs listed in a manifest file.
+     * 
+     * @return 0 if every SWC passed, otherwise 1
+     */
+    public int run(String manifestFile, PrintStream out) {
+        List<Entry> entries;
+
+        try {
+            entries = readManifest(new File(manifestFile));
+        } catch (Exception e) {
+            out.println("Error reading batch manifest: " + e.getMessage());
+            return 1;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ForkJoinPool pool = allViolations ? new ForkJoinPool(threads)
+                : null;
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        List<Result> results = new ArrayList<Result>();
+
+        try {
+            for (final Entry entry : entries) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return validate(entry, pool);
+                    }
+                }));
+            }
+
+            for (Future<Result> f : futures) {
+                try {
+                    results.add(f.get());
+                } catch (Exception e) {
+                    out.println("Error running batch: " + e.getMessage());
+                    return 1;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        return printResults(entries, results, out);
+    }
+
+    private Result validate(Entry entry, ForkJoinPool pool) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(buf);
+        DependencyRules packageOrder;
+        Swc swc;
+        int code;
+
+        try {
+            packageOrder = getPackageOrder(entry.packageOrderFile);
+        } catch (Exception e) {
+            out.println("Error parsing package order file "
+                    + entry.packageOrderFile + ": " + e.getMessage());
+            return new Result(1, buf.toString());
+        }
+
+        try {
+            swc = new Swc(entry.swcFile, cache);
+        } catch (Exception e) {
+            out.println("Error opening swc: " + e.getMessage());
+            return new Result(1, buf.toString());
+        }
+
+        code = SwcValidator.validatePackageOrder(swc, packageOrder, null,
+                allViolations, false, pool, out);
+        out.flush();
+
+        return new Result(code, buf.toString());
+    }
+
+    /**
+     * Returns the parsed package order file, parsing it if no other SWC has
+     * asked for it yet. Concurrent callers wait for the same parse.
+     */
+    private DependencyRules getPackageOrder(final String file) throws Exception {
+        String key = new File(file).getCanonicalPath();
+        Future<DependencyRules> f = packageOrders.get(key);
+
+        if (f == null) {
+            FutureTask<DependencyRules> task = new FutureTask<DependencyRules>(
+                    new Callable<DependencyRules>() {
+                        public DependencyRules call() throws Exception {
+                            return readPackageOrder(file);
+                        }
+                    });
+
+            f = packageOrders.putIfAbsent(key, task);
+
+            if (f == null) {
+                f = task;
+                task.run();
+            }
+        }
+
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+
+            throw e;
+        }
+    }
+
+    private static DependencyRules readPackageOrder(String file) throws Exception {
+        FileReader reader = new FileReader(file);
+
+        try {
+            return DependencyRules.read(reader);
+        } finally {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private static List<Entry> readManifest(File manifest) throws Exception {
+        List<Entry> entries = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        File dir = manifest.getParentFile();
+        String line;
+        int lineNumber = 0;
+
+        try {
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                int tab = line.indexOf('\t');
+                String[] fields = (tab != -1) ? new String[] {
+                        line.substring(0, tab).trim(),
+                        line.substring(tab + 1).trim() } : line.split("\\s+");
+
+                if (fields.length != 2) {
+                    throw new Exception("line " + lineNumber
+                            + ": expected <swcfile> <package-order-file>");
+                }
+
+                entries.add(new Entry(resolve(dir, fields[0]), resolve(dir,
+                        fields[1])));
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+
+        return entries;
+    }
+
+    private static String resolve(File dir, String path) {
+        File f = new File(path);
+        return (dir == null || f.isAbsolute()) ? path : new File(dir, path)
+                .getPath();
+    }
+
+    private static int printResults(List<Entry> entries, List<Result> results,
+            PrintStream out) {
+        int width = "SWC".length();
+        int passed = 0;
+
+        for (Entry entry : entries) {
+            width = Math.max(width, entry.swcFile.length());
+        }
+
+        out.println(pad("Result", 8) + pad("SWC", width + 2) + "Package Order");
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            Result result = results.get(i);
+
+            if (result.code == 0) {
+                passed++;
+            }
+
+            out.println(pad((result.code == 0) ? "PASS" : "FAIL", 8)
+                    + pad(entry.swcFile, width + 2) + entry.packageOrderFile);
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            if (results.get(i).output.length() > 0) {
+                out.println();
+                out.println(entries.get(i).swcFile + ":");
+                out.print(results.get(i).output);
+            }
+        }
+
+        out.println();
+        out.println(passed + " of " + entries.size() + " SWC(s) passed.");
+
+        return (passed == entries.size()) ? 0 : 1;
+    }
+
+    private static String pad(String s, int width) {
+        StringBuilder sb = new StringBuilder(s);
+
+        while (sb.length() < width) {
+            sb.append(' ');
+        }
+
+        return sb.toString();
+    }
+
+    private static class Entry {
+        private String swcFile;
+        private String packageOrderFile;
+
+        public Entry(String swcFile, String packageOrderFile) {
+            this.swcFile = swcFile;
+            this.packageOrderFile = packageOrderFile;
+        }
+    }
+
+    private static class Result {
+        private int code;
+        private String output;
+
+        public Result(int code, String output) {
+            this.code = code;
+            this.output = output;
+        }
+    }
+}
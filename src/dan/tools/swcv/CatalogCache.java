@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A directory of parsed SWC models (--cache-dir).
+ * 
+ * Each entry holds the symbol table and scripts of one Swc in a compact
+ * binary form, so that an unchanged SWC can be loaded by memory mapping the
+ * entry instead of inflating and parsing its catalog.xml. Entries are keyed
+ * by the SWC's canonical path, size and modification time; any change to
+ * the SWC makes its old entry unreachable, and it is eventually evicted.
+ * 
+ * Entry layout (big endian):
+ * 
+ *     int     magic, int version
+ *     string  swc path, long swc size, long swc modification time
+ *     int     package name count, then each package name (string)
+ *     int     symbol count, then for each symbol: int package id, string name
+ *     int     script count, then for each script (in catalog order):
+ *             long name hash, long mod, int def symbol id, int dep count,
+ *             dep symbol ids
+ * 
+ * Strings are an int byte length followed by UTF-8 bytes. 
+ * 
+ * Entries older than the maximum age are evicted, then the oldest entries
+ * are evicted until the directory is under the maximum size. Loading an
+ * entry marks it as recently used.
+ */
+class CatalogCache {
+    private static final int MAGIC = 0x53574356; // "SWCV"
+    private static final int VERSION = 3;
+    private static final String SUFFIX = ".swcc";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+    private long maxAge;
+    private long maxSize;
+
+    /**
+     * @param maxAge maximum entry age in milliseconds
+     * @param maxSize maximum total size of the entries in bytes
+     */
+    public CatalogCache(File dir, long maxAge, long maxSize) {
+        this.dir = dir;
+        this.maxAge = maxAge;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Loads the cached model of a SWC into swc.
+     * 
+     * @return false if there is no usable entry for the SWC, in which case
+     *         swc may have been partially loaded
+     */
+    public boolean load(String swcFile, Swc swc) {
+        File swcPath;
+        File entry;
+
+        try {
+            swcPath = new File(swcFile).getCanonicalFile();
+            entry = getEntryFile(swcPath);
+        } catch (Exception e) {
+            return false;
+        }
+
+        if (!entry.isFile()) {
+            return false;
+        }
+
+        RandomAccessFile file = null;
+
+        try {
+            file = new RandomAccessFile(entry, "r");
+
+            FileChannel channel = file.getChannel();
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION
+                    || !swcPath.getPath().equals(getString(buf))
+                    || buf.getLong() != swcPath.length()
+                    || buf.getLong() != swcPath.lastModified()) {
+                return false;
+            }
+
+            readModel(buf, swc);
+        } catch (Exception e) {
+            // A truncated or corrupt entry; it will be replaced.
+            return false;
+        } finally {
+            try {
+                file.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+
+        entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Stores the model of a loaded SWC and evicts old entries. Failures are
+     * ignored; the cache is only an optimization.
+     */
+    public void store(String swcFile, Swc swc) {
+        File tmp = null;
+
+        try {
+            File swcPath = new File(swcFile).getCanonicalFile();
+            File entry = getEntryFile(swcPath);
+
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                return;
+            }
+
+            // Write to a temporary file and rename, so that concurrent
+            // readers never see a partial entry.
+            tmp = File.createTempFile("swcv", ".tmp", dir);
+
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                putString(out, swcPath.getPath());
+                out.writeLong(swcPath.length());
+                out.writeLong(swcPath.lastModified());
+                writeModel(out, swc);
+            } finally {
+                out.close();
+            }
+
+            Files.move(tmp.toPath(), entry.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+
+            evict();
+        } catch (Exception e) {
+            // ignore
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void writeModel(DataOutputStream out, Swc swc) throws Exception {
+        SymbolTable symbols = swc.getSymbolTable();
+
+        out.writeInt(symbols.getPackageCount());
+
+        for (int i = 0; i < symbols.getPackageCount(); i++) {
+            putString(out, symbols.getPackageName(i));
+        }
+
+        out.writeInt(symbols.getSymbolCount());
+
+        for (int i = 0; i < symbols.getSymbolCount(); i++) {
+            Symbol s = symbols.getSymbol(i);
+
+            out.writeInt(s.getPackageId());
+            putString(out, s.getName());
+        }
+
+        ScriptTable scripts = swc.getScriptTable();
+
+        out.writeInt(scripts.getScriptCount());
+
+        for (int i = 0; i < scripts.getScriptCount(); i++) {
+            out.writeLong(scripts.getName(i));
+            out.writeLong(scripts.getMod(i));
+            out.writeInt(scripts.getDef(i));
+            out.writeInt(scripts.getDepsEnd(i) - scripts.getDepsStart(i));
+
+            for (int j = scripts.getDepsStart(i); j < scripts.getDepsEnd(i); j++) {
+                out.writeInt(scripts.getDep(j));
+            }
+        }
+    }
+
+    private void readModel(ByteBuffer buf, Swc swc) throws Exception {
+        SymbolTable symbols = swc.getSymbolTable();
+        int count;
+
+        count = buf.getInt();
+
+        for (int i = 0; i < count; i++) {
+            symbols.internPackage(getString(buf));
+        }
+
+        count = buf.getInt();
+
+        for (int i = 0; i < count; i++) {
+            int packageId = buf.getInt();
+            symbols.add(packageId, getString(buf));
+        }
+
+        count = buf.getInt();
+
+        int[] deps = new int[16];
+
+        // Replaying the scripts rebuilds the packages exactly as parsing
+        // the catalog did.
+        for (int i = 0; i < count; i++) {
+            long name = buf.getLong();
+            long mod = buf.getLong();
+            Symbol def = symbols.getSymbol(buf.getInt());
+            int n = getLength(buf, 4);
+
+            if (n > deps.length) {
+                deps = new int[Math.max(n, deps.length * 2)];
+            }
+
+            for (int j = 0; j < n; j++) {
+                deps[j] = buf.getInt();
+            }
+
+            swc.addScript(def, deps, n, name, mod);
+        }
+    }
+
+    private void evict() {
+        File[] entries = dir.listFiles();
+
+        if (entries == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long total = 0;
+
+        // Oldest first.
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long d = a.lastModified() - b.lastModified();
+                return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+            }
+        });
+
+        for (File f : entries) {
+            if (f.getName().endsWith(SUFFIX)) {
+                total += f.length();
+            }
+        }
+
+        for (File f : entries) {
+            if (!f.getName().endsWith(SUFFIX)) {
+                continue;
+            }
+
+            if (now - f.lastModified() > maxAge || total > maxSize) {
+                long size = f.length();
+
+                if (f.delete()) {
+                    total -= size;
+                }
+            }
+        }
+    }
+
+    private File getEntryFile(File swcPath) throws Exception {
+        String key = swcPath.getPath() + "|" + swcPath.length() + "|"
+                + swcPath.lastModified();
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                key.getBytes(UTF8));
+        StringBuilder name = new StringBuilder();
+
+        for (byte b : digest) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16));
+            name.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return new File(dir, name.append(SUFFIX).toString());
+    }
+
+    private static void putString(DataOutputStream out, String s)
+            throws Exception {
+        byte[] bytes = s.getBytes(UTF8);
+
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buf) throws Exception {
+        byte[] bytes = new byte[getLength(buf, 1)];
+
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Reads the length of an array of items of the given size, checking
+     * that the rest of the entry can hold it, so that a corrupt entry is a
+     * cache miss rather than a huge allocation.
+     */
+    private static int getLength(ByteBuffer buf, int size) throws Exception {
+        int length = buf.getInt();
+
+        if (length < 0 || length > buf.remaining() / size) {
+            throw new Exception("Corrupt cache entry");
+        }
+
+        return length;
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks a SWC's catalog against the bytecode in its library.swf.
+ * 
+ * The catalog only lists script level def and dep ids, as the compiler saw
+ * them. For each DoABC tag of the SWF, the classes it defines are matched
+ * to catalog scripts, and the names its constant pool refers to are
+ * resolved against the SWC's symbols. A class the catalog does not define,
+ * a referenced symbol the catalog does not list as a dep (missing) and a
+ * listed dep nothing refers to (stale) are reported.
+ * 
+ * Only symbols the SWC defines are compared: names of members and of
+ * external symbols share the same namespaces in the bytecode, so they
+ * cannot be told apart reliably.
+ */
+class CatalogCheck {
+    private DependencyGraph graph;
+    private SymbolTable symbols;
+    private ScriptTable scripts;
+    private int[] scriptOfDef;
+
+    private int tagCount;
+    private int classCount;
+    private List<String> unknownClasses;
+    private List<Mismatch> mismatches;
+
+    // Per symbol: the number of the last tag that defined, referred to or
+    // listed it as a dep, so the per tag sets never need clearing.
+    private int[] ownMarks;
+    private int[] refMarks;
+    private int[] depMarks;
+
+    public CatalogCheck(Swc swc) {
+        this.graph = swc.getDependencyGraph();
+        this.symbols = graph.getSymbolTable();
+        this.scripts = swc.getScriptTable();
+        this.unknownClasses = new ArrayList<String>();
+        this.mismatches = new ArrayList<Mismatch>();
+
+        int n = symbols.getSymbolCount();
+
+        scriptOfDef = new int[n];
+        Arrays.fill(scriptOfDef, -1);
+
+        for (int i = 0; i < scripts.getScriptCount(); i++) {
+            scriptOfDef[scripts.getDef(i)] = i;
+        }
+
+        ownMarks = new int[n];
+        refMarks = new int[n];
+        depMarks = new int[n];
+    }
+
+    /**
+     * Checks every DoABC tag of a SWF. The stream is not closed.
+     */
+    public void check(InputStream swf) throws Exception {
+        SwfReader reader = new SwfReader(swf);
+        ByteBuffer abc;
+
+        while ((abc = reader.nextAbc()) != null) {
+            try {
+                check(new AbcReader(abc));
+            } catch (RuntimeException e) {
+                throw new Exception("Bad DoABC tag " + reader.getName()
+                        + ": " + e);
+            }
+        }
+    }
+
+    public int getTagCount() {
+        return tagCount;
+    }
+
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Returns the ids of the classes in the SWF that the catalog does not
+     * define.
+     */
+    public List<String> getUnknownClasses() {
+        return unknownClasses;
+    }
+
+    public List<Mismatch> getMismatches() {
+        return mismatches;
+    }
+
+    public boolean isValid() {
+        return unknownClasses.isEmpty() && mismatches.isEmpty();
+    }
+
+    private void check(AbcReader abc) {
+        int tag = ++tagCount;
+        int firstScript = -1;
+        List<Integer> tagScripts = new ArrayList<Integer>();
+
+        for (int i = 0; i < abc.getClassCount(); i++) {
+            String id = abc.getClassId(i);
+            Symbol def = symbols.find(id);
+
+            classCount++;
+
+            if (def == null || scriptOfDef[def.getId()] == -1) {
+                unknownClasses.add(id);
+                continue;
+            }
+
+            ownMarks[def.getId()] = tag;
+            tagScripts.add(Integer.valueOf(scriptOfDef[def.getId()]));
+
+            if (firstScript == -1) {
+                firstScript = scriptOfDef[def.getId()];
+            }
+        }
+
+        if (firstScript == -1) {
+            return;
+        }
+
+        // What the bytecode refers to.
+        List<Symbol> refs = new ArrayList<Symbol>();
+        ArrayList<String> ids = new ArrayList<String>();
+
+        for (int i = 1; i < abc.getMultinameCount(); i++) {
+            ids.clear();
+            abc.addIds(i, ids);
+
+            for (String id : ids) {
+                Symbol symbol = symbols.find(id);
+
+                if (symbol != null && isCompared(symbol, tag)
+                        && refMarks[symbol.getId()] != tag) {
+                    refMarks[symbol.getId()] = tag;
+                    refs.add(symbol);
+                }
+            }
+        }
+
+        // What the catalog says the scripts depend on.
+        List<Symbol> deps = new ArrayList<Symbol>();
+
+        for (Integer script : tagScripts) {
+            int s = script.intValue();
+            int end = scripts.getDepsEnd(s);
+
+            for (int j = scripts.getDepsStart(s); j < end; j++) {
+                Symbol symbol = symbols.getSymbol(scripts.getDep(j));
+
+                if (isCompared(symbol, tag)
+                        && depMarks[symbol.getId()] != tag) {
+                    depMarks[symbol.getId()] = tag;
+                    deps.add(symbol);
+                }
+            }
+        }
+
+        List<Symbol> missing = new ArrayList<Symbol>();
+        List<Symbol> stale = new ArrayList<Symbol>();
+
+        for (Symbol symbol : refs) {
+            if (depMarks[symbol.getId()] != tag) {
+                missing.add(symbol);
+            }
+        }
+
+        for (Symbol symbol : deps) {
+            if (refMarks[symbol.getId()] != tag) {
+                stale.add(symbol);
+            }
+        }
+
+        if (!missing.isEmpty() || !stale.isEmpty()) {
+            mismatches.add(new Mismatch(symbols.getSymbol(scripts
+                    .getDef(firstScript)), missing, stale));
+        }
+    }
+
+    /**
+     * Returns whether a symbol is defined by the SWC and not by the tag
+     * being checked.
+     */
+    private boolean isCompared(Symbol symbol, int tag) {
+        return graph.isInternal(symbol.getId())
+                && ownMarks[symbol.getId()] != tag;
+    }
+
+    /**
+     * The deps of a script that the catalog and the bytecode disagree on.
+     */
+    public static class Mismatch {
+        private Symbol script;
+        private List<Symbol> missing;
+        private List<Symbol> stale;
+
+        Mismatch(Symbol script, List<Symbol> missing, List<Symbol> stale) {
+            this.script = script;
+            this.missing = missing;
+            this.stale = stale;
+        }
+
+        /**
+         * Returns the (first) def of the script.
+         */
+        public Symbol getScript() {
+            return script;
+        }
+
+        /**
+         * Returns the symbols the bytecode refers to that are not deps of
+         * the script in the catalog.
+         */
+        public List<Symbol> getMissing() {
+            return missing;
+        }
+
+        /**
+         * Returns the deps of the script in the catalog that the bytecode
+         * does not refer to.
+         */
+        public List<Symbol> getStale() {
+            return stale;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.List;
+
+/**
+ * Receives the scripts read from a SWC's catalog.xml by CatalogParser.
+ */
+interface CatalogHandler {
+    /**
+     * Called once for each script element in the catalog.
+     * 
+     * @param name the script's name, ex. "pkg/a/ClassA", or null if it has
+     *            none
+     * @param mod the script's mod, the modification time of its source, or
+     *            -1 if it has none
+     * @param defId the id of the script's (first) def, ex. "pkg.a:ClassA"
+     * @param depIds the ids of the script's deps. The list is reused by the
+     *            parser, so it is only valid for the duration of the call.
+     */
+    void script(String name, long mod, String defId, List<String> depIds)
+            throws Exception;
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for a SWC's catalog.xml.
+ * 
+ * The catalog is read with StAX rather than loaded into a DOM. Only the
+ * script currently being read is held in memory; it is passed to the
+ * CatalogHandler as soon as its closing tag is seen. Memory use therefore
+ * depends on what the handler keeps, not on the size of the catalog.
+ * 
+ * Only swc/libraries/library/script elements are considered. Like the
+ * original DOM walk, the first def of a script names the script and all of
+ * its deps are reported, and scripts without child elements are skipped.
+ */
+class CatalogParser {
+    private static final XMLInputFactory factory = createFactory();
+
+    private CatalogHandler handler;
+    private List<String> deps;
+
+    public CatalogParser(CatalogHandler handler) {
+        this.handler = handler;
+        this.deps = new ArrayList<String>();
+    }
+
+    public void parse(InputStream inputStream) throws Exception {
+        XMLStreamReader reader;
+
+        // The JDK factory is not documented as thread safe.
+        synchronized (factory) {
+            reader = factory.createXMLStreamReader(inputStream);
+        }
+
+        try {
+            parse(reader);
+        } finally {
+            try {
+                reader.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private void parse(XMLStreamReader reader) throws Exception {
+        int depth = 0;
+        int libraryCount = 0;
+        boolean inSwc = false;
+        boolean inLibraries = false;
+        boolean inLibrary = false;
+        boolean inScript = false;
+        boolean scriptEmpty = false;
+        boolean seenLibraries = false;
+        String scriptName = null;
+        long mod = -1;
+        String def = null;
+
+        // Element depths: swc (1), libraries (2), library (3), script (4),
+        // def and dep (5). Everything else is skipped.
+        while (reader.hasNext()) {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+
+                depth++;
+
+                if (depth == 1) {
+                    inSwc = "swc".equals(name);
+                } else if (depth == 2) {
+                    // Only the first libraries element is read.
+                    inLibraries = inSwc && !seenLibraries
+                            && "libraries".equals(name);
+                    seenLibraries |= inLibraries;
+                } else if (depth == 3) {
+                    inLibrary = inLibraries && "library".equals(name);
+
+                    if (inLibrary) {
+                        libraryCount++;
+                    }
+                } else if (depth == 4) {
+                    inScript = inLibrary && "script".equals(name);
+                    scriptEmpty = true;
+                    def = null;
+                    deps.clear();
+
+                    if (inScript) {
+                        scriptName = reader.getAttributeValue(null, "name");
+                        mod = getMod(reader);
+                    }
+                } else if (depth == 5 && inScript) {
+                    scriptEmpty = false;
+
+                    if ("def".equals(name)) {
+                        if (def == null) {
+                            def = getId(reader, name);
+                        }
+                    } else if ("dep".equals(name)) {
+                        deps.add(getId(reader, name));
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 4 && inScript && !scriptEmpty) {
+                    if (def == null) {
+                        throw new Exception("No def for script: "
+                                + reader.getLocalName());
+                    }
+
+                    handler.script(scriptName, mod, def, deps);
+                }
+
+                if (depth == 4) {
+                    inScript = false;
+                }
+
+                depth--;
+            }
+        }
+
+        if (libraryCount == 0) {
+            throw new Exception("Cannot find library information in swc.");
+        }
+    }
+
+    private String getId(XMLStreamReader reader, String elementName)
+            throws Exception {
+        String id = reader.getAttributeValue(null, "id");
+
+        if (id == null) {
+            throw new Exception("No id attribute for " + elementName + ": "
+                    + elementName);
+        }
+
+        return id;
+    }
+
+    /**
+     * Returns the mod attribute of a script, or -1 if it is missing or not
+     * a number.
+     */
+    private static long getMod(XMLStreamReader reader) {
+        String mod = reader.getAttributeValue(null, "mod");
+
+        try {
+            return (mod != null) ? Long.parseLong(mod) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory f = XMLInputFactory.newInstance();
+
+        // catalog.xml never needs a DTD; don't go looking for one.
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+
+        return f;
+    }
+}
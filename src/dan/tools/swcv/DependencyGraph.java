@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * A frozen, array based view of a Swc's package dependencies.
+ * 
+ * Packages are numbered 0..n-1 in package name order. The exports and
+ * dependencies of each package are stored in compressed sparse row form:
+ * the symbol ids (see SymbolTable) of package p are found between
+ * getExportsStart(p)/getExportsEnd(p) and getDependenciesStart(p)/
+ * getDependenciesEnd(p). Whether a symbol is internal to the SWC, and which
+ * package exports it, is resolved once when the graph is built.
+ * 
+ * The internal dependencies are also collapsed into package to package
+ * edges, held twice: as a bit matrix (row p has bit q set when p depends on
+ * a symbol of q), for checks with whole words of packages at a time, and
+ * as a list per package, in the order each edge first appears among the
+ * package's dependencies. Each listed edge keeps its witness, the index of
+ * the first dependency that makes it. The matrix is not built for SWCs with
+ * so many packages that it would exceed MAX_MATRIX_WORDS; the edge lists
+ * answer the same questions then.
+ * 
+ * The graph is never modified after it is built.
+ */
+class DependencyGraph {
+    // Largest edge bit matrix built, in longs (16 MB, about 11500
+    // packages).
+    private static final int MAX_MATRIX_WORDS = 1 << 21;
+
+    private SymbolTable symbols;
+    private String[] packageNames;
+    private int[] exportsOffsets;
+    private int[] exports;
+    private int[] dependenciesOffsets;
+    private int[] dependencies;
+    private int[] symbolOwners;
+    private int words;
+    private long[] edgeBits;
+    private int[] edgesOffsets;
+    private int[] edgeTargets;
+    private int[] edgeWitnesses;
+
+    private DependencyGraph() {
+    }
+
+    public static DependencyGraph build(Swc swc) {
+        DependencyGraph g = new DependencyGraph();
+        ArrayList<String> names = new ArrayList<String>();
+        int exportCount = 0;
+        int dependencyCount = 0;
+
+        for (Package pkg : swc.packagesIterator()) {
+            names.add(pkg.getName());
+        }
+
+        Collections.sort(names);
+
+        g.symbols = swc.getSymbolTable();
+        g.packageNames = names.toArray(new String[names.size()]);
+        g.exportsOffsets = new int[names.size() + 1];
+        g.dependenciesOffsets = new int[names.size() + 1];
+
+        for (int p = 0; p < names.size(); p++) {
+            Package pkg = swc.getPackage(names.get(p));
+
+            exportCount += pkg.getExportCount();
+            dependencyCount += pkg.getDependencyCount();
+            g.exportsOffsets[p + 1] = exportCount;
+            g.dependenciesOffsets[p + 1] = dependencyCount;
+        }
+
+        g.exports = new int[exportCount];
+        g.dependencies = new int[dependencyCount];
+        g.symbolOwners = new int[g.symbols.getSymbolCount()];
+        Arrays.fill(g.symbolOwners, -1);
+
+        for (int p = 0; p < names.size(); p++) {
+            Package pkg = swc.getPackage(names.get(p));
+            int i = g.exportsOffsets[p];
+            int j = g.dependenciesOffsets[p];
+
+            for (Symbol exp : pkg.exportsIterator()) {
+                g.exports[i++] = exp.getId();
+                g.symbolOwners[exp.getId()] = p;
+            }
+
+            for (Symbol dep : pkg.dependenciesIterator()) {
+                g.dependencies[j++] = dep.getId();
+            }
+        }
+
+        g.buildEdges();
+        return g;
+    }
+
+    private void buildEdges() {
+        int n = packageNames.length;
+        int count = 0;
+
+        // The marks remember the edges of package p, marked p + 1.
+        int[] marks = new int[n];
+
+        words = (n + 63) >>> 6;
+
+        if ((long) n * words <= MAX_MATRIX_WORDS) {
+            edgeBits = new long[n * words];
+        }
+
+        edgesOffsets = new int[n + 1];
+        edgeTargets = new int[dependencies.length];
+        edgeWitnesses = new int[dependencies.length];
+
+        for (int p = 0; p < n; p++) {
+            for (int i = dependenciesOffsets[p]; i < dependenciesOffsets[p + 1]; i++) {
+                int q = symbolOwners[dependencies[i]];
+
+                if (q != -1 && marks[q] != p + 1) {
+                    marks[q] = p + 1;
+                    edgeTargets[count] = q;
+                    edgeWitnesses[count] = i;
+                    count++;
+
+                    if (edgeBits != null) {
+                        edgeBits[p * words + (q >>> 6)] |= 1L << q;
+                    }
+                }
+            }
+
+            edgesOffsets[p + 1] = count;
+        }
+
+        edgeTargets = Arrays.copyOf(edgeTargets, count);
+        edgeWitnesses = Arrays.copyOf(edgeWitnesses, count);
+    }
+
+    public SymbolTable getSymbolTable() {
+        return symbols;
+    }
+
+    public int getPackageCount() {
+        return packageNames.length;
+    }
+
+    public String getPackageName(int p) {
+        return packageNames[p];
+    }
+
+    /**
+     * Returns the index of a package, or -1 if the SWC does not contain it.
+     */
+    public int findPackage(String packageName) {
+        int p = Arrays.binarySearch(packageNames, packageName);
+        return (p >= 0) ? p : -1;
+    }
+
+    public int getExportsStart(int p) {
+        return exportsOffsets[p];
+    }
+
+    public int getExportsEnd(int p) {
+        return exportsOffsets[p + 1];
+    }
+
+    public int getExport(int i) {
+        return exports[i];
+    }
+
+    public int getDependenciesStart(int p) {
+        return dependenciesOffsets[p];
+    }
+
+    public int getDependenciesEnd(int p) {
+        return dependenciesOffsets[p + 1];
+    }
+
+    public int getDependency(int i) {
+        return dependencies[i];
+    }
+
+    /**
+     * Returns the index of the package that exports a symbol, or -1 if the
+     * symbol is external to the SWC.
+     */
+    public int getOwner(int symbol) {
+        return symbolOwners[symbol];
+    }
+
+    public boolean isInternal(int symbol) {
+        return symbolOwners[symbol] != -1;
+    }
+
+    /**
+     * Returns true if package p depends on a symbol exported by package q.
+     */
+    public boolean hasEdge(int p, int q) {
+        if (edgeBits == null) {
+            for (int i = edgesOffsets[p]; i < edgesOffsets[p + 1]; i++) {
+                if (edgeTargets[i] == q) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        return (edgeBits[p * words + (q >>> 6)] & (1L << q)) != 0;
+    }
+
+    /**
+     * Returns a set of packages that can be passed to addToSet and
+     * hasEdgeTo.
+     */
+    public long[] newPackageSet() {
+        return new long[words];
+    }
+
+    public static void addToSet(long[] set, int p) {
+        set[p >>> 6] |= 1L << p;
+    }
+
+    /**
+     * Returns true if package p depends on a symbol exported by any package
+     * in set.
+     */
+    public boolean hasEdgeTo(int p, long[] set) {
+        if (edgeBits == null) {
+            for (int i = edgesOffsets[p]; i < edgesOffsets[p + 1]; i++) {
+                int q = edgeTargets[i];
+
+                if ((set[q >>> 6] & (1L << q)) != 0) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        int row = p * words;
+
+        for (int w = 0; w < words; w++) {
+            if ((edgeBits[row + w] & set[w]) != 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int getEdgesStart(int p) {
+        return edgesOffsets[p];
+    }
+
+    public int getEdgesEnd(int p) {
+        return edgesOffsets[p + 1];
+    }
+
+    /**
+     * Returns the package an edge points to.
+     */
+    public int getEdgeTarget(int i) {
+        return edgeTargets[i];
+    }
+
+    /**
+     * Returns the index (for getDependency) of the first dependency that
+     * makes an edge.
+     */
+    public int getEdgeWitness(int i) {
+        return edgeWitnesses[i];
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.Reader;
+import java.io.StringReader;
+
+/**
+ * Rules that say which packages of a SWC may depend on which.
+ * 
+ * Rules put each package in a group, and allow or forbid dependencies
+ * between groups. Two kinds of rules exist, both read from a text
+ * specification: a PackageOrder, where the groups are ranks and a package
+ * may only depend on packages of the same or a lower rank, and LayerRules,
+ * where the groups are named layers and the allowed dependencies between
+ * them are listed.
+ */
+public abstract class DependencyRules {
+    /**
+     * Reads rules from a specification in either format. A layer
+     * specification is recognized by its ':' or "->", which cannot appear
+     * in a package order.
+     */
+    public static DependencyRules read(Reader reader) throws Exception {
+        StringBuilder buf = new StringBuilder();
+        char[] chars = new char[4096];
+        int n;
+
+        while ((n = reader.read(chars)) != -1) {
+            buf.append(chars, 0, n);
+        }
+
+        String spec = buf.toString();
+
+        if (spec.indexOf(':') != -1 || spec.indexOf("->") != -1) {
+            return new LayerRules(spec);
+        }
+
+        return new PackageOrder(new StringReader(spec));
+    }
+
+    /**
+     * Returns the specification in a normal form. Two rules with the same
+     * specification group every package the same way and allow the same
+     * dependencies.
+     */
+    public abstract String getSpecification();
+
+    /**
+     * Returns the group of a package, or -1 if the rules do not cover it.
+     */
+    public abstract int getGroup(String pkg);
+
+    /**
+     * Returns true if packages of group from may depend on packages of
+     * group to.
+     */
+    public abstract boolean canDepend(int from, int to);
+}
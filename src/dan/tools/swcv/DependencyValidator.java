@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Checks the dependencies of a DependencyGraph against DependencyRules.
+ * 
+ * With a PackageOrder, packages of lower rank cannot depend on symbols from
+ * packages of higher rank; with LayerRules, a package can only depend on
+ * symbols from layers its layer may use. Dependencies on external symbols
+ * (symbols not defined in the swc) are ignored, as are packages the rules
+ * do not cover. Groups are passed as an array indexed by graph package, as
+ * produced by rankPackages().
+ * 
+ * The check of one package is independent of every other package, so
+ * findAllViolations() splits the packages over a ForkJoinPool. Results are
+ * always returned in package name order and, within a package, in symbol
+ * order, however many threads run.
+ * 
+ * Both searches first find the violating packages from the graph's package
+ * edge matrix, so a SWC that passes is checked without reading its
+ * dependencies at all.
+ */
+class DependencyValidator {
+    // Largest number of dependencies checked by one fork/join task.
+    private static final int SPLIT_THRESHOLD = 8192;
+
+    private static final Comparator<Violation> SYMBOL_ORDER = new Comparator<Violation>() {
+        public int compare(Violation a, Violation b) {
+            return a.getSymbol().toString().compareTo(b.getSymbol().toString());
+        }
+    };
+
+    private DependencyValidator() {
+    }
+
+    /**
+     * Looks up the group (the rank, for a package order) of each package in
+     * the graph. Packages that the rules do not cover get -1 and are added
+     * to missing, in package name order.
+     */
+    public static int[] rankPackages(DependencyGraph graph,
+            DependencyRules rules, List<String> missing) {
+        int[] groups = new int[graph.getPackageCount()];
+
+        for (int p = 0; p < groups.length; p++) {
+            groups[p] = rules.getGroup(graph.getPackageName(p));
+
+            if (groups[p] == -1) {
+                missing.add(graph.getPackageName(p));
+            }
+        }
+
+        return groups;
+    }
+
+    /**
+     * Returns the packages that depend on a package they may not use, as an
+     * array indexed by graph package. Only the package edges of the graph,
+     * and of libraries if it is not null, are read.
+     */
+    public static boolean[] findViolatingPackages(DependencyGraph graph,
+            DependencyRules rules, int[] groups, LibraryIndex libraries) {
+        return findViolatingPackages(new Check(graph, rules, groups,
+                libraries));
+    }
+
+    private static boolean[] findViolatingPackages(Check check) {
+        DependencyGraph graph = check.graph;
+        int[] groups = check.groups;
+        int n = graph.getPackageCount();
+        boolean[] violating;
+
+        if (check.rules instanceof PackageOrder) {
+            violating = findViolatingPackages(graph, groups);
+        } else {
+            violating = new boolean[n];
+
+            int maxGroup = -1;
+
+            for (int p = 0; p < n; p++) {
+                maxGroup = Math.max(maxGroup, groups[p]);
+            }
+
+            // The set of packages each group may not use, built when a
+            // package of the group is first seen. There are few groups
+            // (layers).
+            long[][] forbidden = new long[maxGroup + 1][];
+
+            for (int p = 0; p < n; p++) {
+                int g = groups[p];
+
+                if (g == -1) {
+                    continue;
+                }
+
+                if (forbidden[g] == null) {
+                    forbidden[g] = graph.newPackageSet();
+
+                    for (int q = 0; q < n; q++) {
+                        if (isViolation(check.rules, g, groups[q])) {
+                            DependencyGraph.addToSet(forbidden[g], q);
+                        }
+                    }
+                }
+
+                violating[p] = graph.hasEdgeTo(p, forbidden[g]);
+            }
+        }
+
+        if (check.libraries != null) {
+            LibraryIndex libraries = check.libraries;
+
+            for (int p = 0; p < n; p++) {
+                for (int i = libraries.getEdgesStart(p); !violating[p]
+                        && i < libraries.getEdgesEnd(p); i++) {
+                    violating[p] = isViolation(check.rules, groups[p],
+                            check.libraryGroups[libraries.getEdgeTarget(i)]);
+                }
+            }
+        }
+
+        return violating;
+    }
+
+    /**
+     * Returns the violating packages for a package order. Packages are
+     * visited from the highest rank down while a set of the packages of
+     * higher rank is kept, so the cost is about P * P / 64 word operations
+     * for P packages, whatever the number of dependencies.
+     */
+    private static boolean[] findViolatingPackages(DependencyGraph graph,
+            int[] ranks) {
+        int n = graph.getPackageCount();
+        boolean[] violating = new boolean[n];
+        long[] higher = graph.newPackageSet();
+        int maxRank = -1;
+
+        for (int p = 0; p < n; p++) {
+            maxRank = Math.max(maxRank, ranks[p]);
+        }
+
+        // Bucket the ranked packages by rank.
+        int[] offsets = new int[maxRank + 2];
+        int[] byRank = new int[n];
+
+        for (int p = 0; p < n; p++) {
+            if (ranks[p] != -1) {
+                offsets[ranks[p] + 1]++;
+            }
+        }
+
+        for (int r = 0; r <= maxRank; r++) {
+            offsets[r + 1] += offsets[r];
+        }
+
+        int[] next = Arrays.copyOf(offsets, maxRank + 1);
+
+        for (int p = 0; p < n; p++) {
+            if (ranks[p] != -1) {
+                byRank[next[ranks[p]]++] = p;
+            }
+        }
+
+        // Packages of equal rank may depend on each other, so a rank's
+        // packages join the set only after all of them are checked.
+        for (int r = maxRank; r >= 0; r--) {
+            for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+                violating[byRank[i]] = graph.hasEdgeTo(byRank[i], higher);
+            }
+
+            for (int i = offsets[r]; i < offsets[r + 1]; i++) {
+                DependencyGraph.addToSet(higher, byRank[i]);
+            }
+        }
+
+        return violating;
+    }
+
+    /**
+     * Returns the first violation found, or null if there is none: the
+     * first violating dependency of the first violating package. libraries
+     * may be null.
+     */
+    public static Violation findFirstViolation(DependencyGraph graph,
+            DependencyRules rules, int[] groups, LibraryIndex libraries) {
+        Check check = new Check(graph, rules, groups, libraries);
+        boolean[] violating = findViolatingPackages(check);
+
+        for (int p = 0; p < graph.getPackageCount(); p++) {
+            if (!violating[p]) {
+                continue;
+            }
+
+            // The earliest witness of the package's violating edges is its
+            // first violating dependency.
+            int first = Integer.MAX_VALUE;
+
+            for (int i = graph.getEdgesStart(p); i < graph.getEdgesEnd(p); i++) {
+                if (isViolation(rules, groups[p], groups[graph
+                        .getEdgeTarget(i)])) {
+                    first = Math.min(first, graph.getEdgeWitness(i));
+                }
+            }
+
+            if (libraries != null) {
+                for (int i = libraries.getEdgesStart(p); i < libraries
+                        .getEdgesEnd(p); i++) {
+                    if (isViolation(rules, groups[p],
+                            check.libraryGroups[libraries.getEdgeTarget(i)])) {
+                        first = Math.min(first, libraries.getEdgeWitness(i));
+                    }
+                }
+            }
+
+            return createViolation(graph, p, graph.getDependency(first));
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns every violation in the graph, grouped by package. Packages
+     * the rules do not cover are skipped. Only the dependencies of packages
+     * found by findViolatingPackages() are scanned. libraries may be null.
+     */
+    public static List<Violation> findAllViolations(DependencyGraph graph,
+            DependencyRules rules, int[] groups, LibraryIndex libraries,
+            ForkJoinPool pool) {
+        Check check = new Check(graph, rules, groups, libraries);
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        List<Violation>[] byPackage = new List[graph.getPackageCount()];
+        List<Violation> violations = new ArrayList<Violation>();
+        boolean[] violating = findViolatingPackages(check);
+
+        pool.invoke(new CheckTask(check, violating, byPackage, 0,
+                byPackage.length));
+
+        for (List<Violation> v : byPackage) {
+            if (v != null) {
+                violations.addAll(v);
+            }
+        }
+
+        return violations;
+    }
+
+    /**
+     * Returns true if a package of group from may not depend on a package
+     * of group to. Packages the rules do not cover (-1) are never checked.
+     */
+    static boolean isViolation(DependencyRules rules, int from, int to) {
+        return from != -1 && to != -1 && !rules.canDepend(from, to);
+    }
+
+    private static Violation createViolation(DependencyGraph graph, int p,
+            int dep) {
+        return new Violation(graph.getPackageName(p), graph.getSymbolTable()
+                .getSymbol(dep));
+    }
+
+    private static List<Violation> checkPackage(Check check, int p) {
+        DependencyGraph graph = check.graph;
+        int[] groups = check.groups;
+        List<Violation> violations = null;
+
+        for (int i = graph.getDependenciesStart(p); i < graph
+                .getDependenciesEnd(p); i++) {
+            int dep = graph.getDependency(i);
+            int owner = graph.getOwner(dep);
+            int group;
+
+            if (owner != -1) {
+                group = groups[owner];
+            } else if (check.libraries != null
+                    && check.libraries.getLibrary(dep) != -1) {
+                group = check.libraryGroups[graph.getSymbolTable().getSymbol(
+                        dep).getPackageId()];
+            } else {
+                continue;
+            }
+
+            if (isViolation(check.rules, groups[p], group)) {
+                if (violations == null) {
+                    violations = new ArrayList<Violation>();
+                }
+
+                violations.add(createViolation(graph, p, dep));
+            }
+        }
+
+        if (violations != null) {
+            Collections.sort(violations, SYMBOL_ORDER);
+        }
+
+        return violations;
+    }
+
+    /**
+     * What one search checks. The groups of library packages are indexed
+     * by SymbolTable package id and only set for packages that SWC
+     * packages use.
+     */
+    private static class Check {
+        private DependencyGraph graph;
+        private DependencyRules rules;
+        private int[] groups;
+        private LibraryIndex libraries;
+        private int[] libraryGroups;
+
+        public Check(DependencyGraph graph, DependencyRules rules,
+                int[] groups, LibraryIndex libraries) {
+            this.graph = graph;
+            this.rules = rules;
+            this.groups = groups;
+            this.libraries = libraries;
+
+            if (libraries != null) {
+                SymbolTable symbols = graph.getSymbolTable();
+
+                libraryGroups = new int[symbols.getPackageCount()];
+                Arrays.fill(libraryGroups, -1);
+
+                for (int i = 0; i < libraries.getEdgesStart(graph
+                        .getPackageCount()); i++) {
+                    int q = libraries.getEdgeTarget(i);
+                    libraryGroups[q] = rules.getGroup(symbols
+                            .getPackageName(q));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks packages [from, to), splitting the range in half until it
+     * holds few enough dependencies. Each package writes only its own slot
+     * of the results array.
+     */
+    private static class CheckTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private Check check;
+        private boolean[] violating;
+        private List<Violation>[] results;
+        private int from;
+        private int to;
+
+        public CheckTask(Check check, boolean[] violating,
+                List<Violation>[] results, int from, int to) {
+            this.check = check;
+            this.violating = violating;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            DependencyGraph graph = check.graph;
+            int size = graph.getDependenciesStart(to)
+                    - graph.getDependenciesStart(from);
+
+            if (to - from > 1 && size > SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+
+                invokeAll(new CheckTask(check, violating, results, from, mid),
+                        new CheckTask(check, violating, results, mid, to));
+            } else {
+                for (int p = from; p < to; p++) {
+                    if (violating[p]) {
+                        results[p] = checkPackage(check, p);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * A SWC catalog held in sorted run files instead of a Swc, for catalogs too
+ * large to load within the heap (see --memory-budget).
+ * 
+ * Scripts are streamed from the catalog into an ExternalSorter as symbol
+ * records: one for each def and one for each (dep, package) pair. Merging
+ * the records sorts every dep next to the def of its symbol, if the SWC has
+ * one, so one pass tells internal dependencies from external ones. That
+ * pass feeds a second sorter, of violations or of report lines, which is
+ * merged in package order for the output. The symbol records still in
+ * memory are written to a run file before the pass, so one sorter at a time
+ * holds records: only the package names, the memory budget of records and
+ * the merge buffers are held in memory.
+ * 
+ * Output is in sorted order: the items of each report section are sorted
+ * by name rather than listed in catalog order, and a fail-fast validation
+ * reports the violation that sorts first.
+ */
+class ExternalCatalog {
+    // Record fields are separated by a tab, which sorts before every
+    // character of a symbol or package name, so records sort by their
+    // first field first.
+    private static final char SEPARATOR = '\t';
+
+    // Symbol record kinds: defs sort before the deps on them.
+    private static final String DEF = "0";
+    private static final String DEP = "1";
+
+    private File dir;
+    private long memoryBudget;
+    private ExternalSorter symbols;
+    private TreeSet<String> packageNames;
+
+    /**
+     * @param dir the directory for run files, or null for the default
+     *            temporary directory
+     * @param memoryBudget the bytes of records held in memory at a time
+     */
+    public ExternalCatalog(File dir, long memoryBudget) {
+        this.dir = dir;
+        this.memoryBudget = memoryBudget;
+        this.symbols = new ExternalSorter(dir, memoryBudget);
+        this.packageNames = new TreeSet<String>();
+    }
+
+    /**
+     * Reads a catalog.xml. The stream is not closed.
+     */
+    public void load(InputStream catalogXml) throws Exception {
+        new CatalogParser(new CatalogHandler() {
+            public void script(String name, long mod, String defId,
+                    List<String> depIds) throws Exception {
+                String pkg = SymbolTable.getPackageName(defId);
+                String id = SymbolTable.getCanonicalId(defId);
+
+                packageNames.add(pkg);
+                symbols.add(id + SEPARATOR + DEF);
+
+                for (String depId : depIds) {
+                    symbols.add(SymbolTable.getCanonicalId(depId) + SEPARATOR
+                            + DEP + SEPARATOR + pkg + SEPARATOR + id);
+                }
+            }
+        }).parse(catalogXml);
+    }
+
+    public int getPackageCount() {
+        return packageNames.size();
+    }
+
+    /**
+     * Returns the number of run files written while loading.
+     */
+    public int getRunCount() {
+        return symbols.getRunCount();
+    }
+
+    /**
+     * Validates the catalog against rules, like SwcValidator.validate.
+     * Violations are listed in package, then symbol order; the classes of
+     * each violation are named.
+     */
+    public ValidationResult validate(DependencyRules rules,
+            boolean allViolations) throws IOException {
+        List<String> missing = new ArrayList<String>();
+        HashMap<String, Integer> groups = new HashMap<String, Integer>();
+
+        for (String pkg : packageNames) {
+            int group = rules.getGroup(pkg);
+
+            groups.put(pkg, Integer.valueOf(group));
+
+            if (group == -1) {
+                missing.add(pkg);
+            }
+        }
+
+        List<Violation> violations = new ArrayList<Violation>();
+
+        if (!missing.isEmpty() && !allViolations) {
+            return new ValidationResult(missing.subList(0, 1), violations,
+                    false);
+        }
+
+        // Join: (from package, symbol, class) for each violating dep.
+        ExternalSorter found = new ExternalSorter(dir, memoryBudget);
+        Join join = new Join();
+
+        try {
+            while (join.next()) {
+                if (join.isInternal()
+                        && DependencyValidator.isViolation(rules, groups
+                                .get(join.from).intValue(), groups.get(
+                                join.getOwner()).intValue())) {
+                    found.add(join.from + SEPARATOR + join.symbol
+                            + SEPARATOR + join.cls);
+                }
+            }
+
+            join.close();
+
+            // Group the classes of each (package, symbol).
+            ExternalSorter.Reader reader = found.open();
+
+            try {
+                String[] last = null;
+                List<Symbol> classes = null;
+                String record;
+
+                while ((record = reader.next()) != null) {
+                    String[] fields = record.split("\t", -1);
+
+                    if (last == null || !last[0].equals(fields[0])
+                            || !last[1].equals(fields[1])) {
+                        if (last != null) {
+                            violations.add(createViolation(last, classes));
+
+                            if (!allViolations) {
+                                break;
+                            }
+                        }
+
+                        last = fields;
+                        classes = new ArrayList<Symbol>();
+                    }
+
+                    classes.add(createSymbol(fields[2]));
+                }
+
+                if (last != null
+                        && (allViolations || violations.isEmpty())) {
+                    violations.add(createViolation(last, classes));
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            join.close();
+            found.close();
+        }
+
+        if (!allViolations) {
+            return new ValidationResult(missing, violations,
+                    violations.isEmpty());
+        }
+
+        return new ValidationResult(missing, violations, true);
+    }
+
+    /**
+     * Writes the package report in format (see PackageReport). The stream
+     * is flushed but not closed.
+     */
+    public void report(String format, OutputStream out) throws IOException {
+        ExternalSorter lines = new ExternalSorter(dir, memoryBudget);
+        Join join = new Join();
+
+        try {
+            // (package, section, item) lines, merged in report order.
+            while (join.next()) {
+                if (join.isDef()) {
+                    String[] def = split(join.symbol);
+
+                    lines.add(def[0] + SEPARATOR + PackageReport.EXPORTS
+                            + SEPARATOR + def[1]);
+                } else if (join.isInternal()) {
+                    lines.add(join.from + SEPARATOR
+                            + PackageReport.DEPENDENCIES + SEPARATOR
+                            + join.symbol);
+                    lines.add(join.from + SEPARATOR
+                            + PackageReport.DEPENDENCY_PACKAGES + SEPARATOR
+                            + join.getOwner());
+                } else {
+                    lines.add(join.from + SEPARATOR
+                            + PackageReport.EXTERNAL_DEPENDENCIES
+                            + SEPARATOR + join.symbol);
+                    lines.add(join.from + SEPARATOR
+                            + PackageReport.EXTERNAL_DEPENDENCY_PACKAGES
+                            + SEPARATOR + join.getOwner());
+                }
+            }
+
+            join.close();
+            writeReport(lines, new PackageReport(format), out);
+        } finally {
+            join.close();
+            lines.close();
+        }
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    public void close() {
+        symbols.close();
+    }
+
+    private static void writeReport(ExternalSorter lines,
+            PackageReport report, OutputStream out) throws IOException {
+        ExternalSorter.Reader reader = lines.open();
+        String pkg = null;
+        int section = -1;
+
+        report.begin(out);
+
+        try {
+            String record;
+
+            while ((record = reader.next()) != null) {
+                String[] fields = record.split("\t", -1);
+                int s = Integer.parseInt(fields[1]);
+
+                if (!fields[0].equals(pkg)) {
+                    if (pkg != null) {
+                        endPackage(report, section);
+                    }
+
+                    pkg = fields[0];
+                    section = -1;
+                    report.beginPackage(pkg);
+                }
+
+                // Sections without items are still written, in order.
+                while (section < s) {
+                    if (section >= 0) {
+                        report.endSection();
+                    }
+
+                    report.beginSection(++section);
+                }
+
+                report.writeItem(fields[2]);
+            }
+
+            if (pkg != null) {
+                endPackage(report, section);
+            }
+        } finally {
+            reader.close();
+        }
+
+        report.end();
+    }
+
+    private static void endPackage(PackageReport report, int section)
+            throws IOException {
+        report.endSection();
+
+        while (section < PackageReport.EXTERNAL_DEPENDENCY_PACKAGES) {
+            report.beginSection(++section);
+            report.endSection();
+        }
+
+        report.endPackage();
+    }
+
+    private static Violation createViolation(String[] fields,
+            List<Symbol> classes) {
+        return new Violation(fields[0], createSymbol(fields[1]), classes);
+    }
+
+    private static Symbol createSymbol(String id) {
+        String[] parts = split(id);
+        return new Symbol(parts[1], parts[0]);
+    }
+
+    /**
+     * Splits a canonical "package:name" id. Package names have no colons.
+     */
+    private static String[] split(String id) {
+        int colon = id.indexOf(':');
+        return new String[] { id.substring(0, colon), id.substring(colon + 1) };
+    }
+
+    /**
+     * One pass over the merged symbol records. Each step is a def or a dep
+     * of the current symbol; a dep is internal if the symbol has a def.
+     */
+    private class Join {
+        private ExternalSorter.Reader reader;
+        private boolean def;
+        private boolean defined;
+
+        // The symbol, and for a dep the package and the class (script def)
+        // that depend on it.
+        private String symbol;
+        private String from;
+        private String cls;
+
+        Join() throws IOException {
+            // The second sorter gets the whole budget.
+            symbols.flush();
+            reader = symbols.open();
+        }
+
+        /**
+         * Moves to the next record. Returns false at the end.
+         */
+        boolean next() throws IOException {
+            String record = reader.next();
+
+            if (record == null) {
+                return false;
+            }
+
+            String[] fields = record.split("\t", -1);
+
+            if (!fields[0].equals(symbol)) {
+                symbol = fields[0];
+                defined = false;
+            }
+
+            def = DEF.equals(fields[1]);
+
+            if (def) {
+                defined = true;
+                from = null;
+                cls = null;
+            } else {
+                from = fields[2];
+                cls = fields[3];
+            }
+
+            return true;
+        }
+
+        boolean isDef() {
+            return def;
+        }
+
+        boolean isInternal() {
+            return !def && defined;
+        }
+
+        /**
+         * Returns the package of the current symbol.
+         */
+        String getOwner() {
+            return symbol.substring(0, symbol.indexOf(':'));
+        }
+
+        void close() {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts string records that may not fit in memory.
+ * 
+ * Records are collected in memory until their estimated size reaches the
+ * memory budget; they are then sorted and written to a temporary run file.
+ * open() merges the runs, and the records still in memory, into one sorted
+ * stream with duplicates removed. At most MAX_FAN_IN runs are merged at
+ * once; when there are more, groups of runs are first merged into longer
+ * runs. The sorter can be opened any number of times, until it is closed,
+ * which deletes the run files.
+ */
+class ExternalSorter {
+    private static final int MAX_FAN_IN = 64;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Rough heap size of a record: the String, its char array and the list
+    // slot, plus two bytes a char.
+    private static final int RECORD_OVERHEAD = 64;
+
+    private File dir;
+    private long memoryBudget;
+    private long memoryUsed;
+    private List<String> records;
+    private List<File> runs;
+
+    /**
+     * @param dir the directory of the run files, or null for the default
+     *            temporary directory
+     */
+    public ExternalSorter(File dir, long memoryBudget) {
+        this.dir = dir;
+        this.memoryBudget = memoryBudget;
+        this.records = new ArrayList<String>();
+        this.runs = new ArrayList<File>();
+    }
+
+    public void add(String record) throws IOException {
+        records.add(record);
+        memoryUsed += RECORD_OVERHEAD + 2 * record.length();
+
+        if (memoryUsed >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns the number of run files written so far.
+     */
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Returns a reader of all the records added so far, in order and
+     * without duplicates.
+     */
+    public Reader open() throws IOException {
+        Collections.sort(records);
+
+        while (runs.size() > MAX_FAN_IN) {
+            List<File> group = new ArrayList<File>(runs.subList(0,
+                    MAX_FAN_IN));
+            Reader reader = new Reader(group, null);
+            File run = createRun();
+
+            try {
+                write(reader, run);
+            } finally {
+                reader.close();
+            }
+
+            for (File f : group) {
+                f.delete();
+            }
+
+            runs.removeAll(group);
+            runs.add(run);
+        }
+
+        return new Reader(runs, records);
+    }
+
+    /**
+     * Writes the records held in memory to a run file, so that the sorter
+     * and its readers hold no records in memory.
+     */
+    public void flush() throws IOException {
+        if (!records.isEmpty()) {
+            spill();
+        }
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    public void close() {
+        for (File f : runs) {
+            f.delete();
+        }
+
+        runs.clear();
+        records.clear();
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(records);
+
+        File run = createRun();
+        Reader reader = new Reader(Collections.<File> emptyList(), records);
+
+        write(reader, run);
+        runs.add(run);
+        records = new ArrayList<String>();
+        memoryUsed = 0;
+    }
+
+    private File createRun() throws IOException {
+        File run = File.createTempFile("swcv", ".run", dir);
+
+        run.deleteOnExit();
+        return run;
+    }
+
+    private static void write(Reader reader, File run) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(run), BUFFER_SIZE));
+
+        try {
+            String record;
+
+            while ((record = reader.next()) != null) {
+                out.writeUTF(record);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Merges sorted runs and a sorted in memory list.
+     */
+    public static class Reader {
+        private PriorityQueue<Source> queue;
+        private List<Source> sources;
+        private String last;
+
+        Reader(List<File> runs, List<String> records) throws IOException {
+            queue = new PriorityQueue<Source>(runs.size() + 1);
+            sources = new ArrayList<Source>();
+
+            try {
+                for (File run : runs) {
+                    sources.add(new Source(new DataInputStream(
+                            new BufferedInputStream(new FileInputStream(run),
+                                    BUFFER_SIZE)), null));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+
+            if (records != null) {
+                sources.add(new Source(null, records));
+            }
+
+            for (Source source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        /**
+         * Returns the next record, or null at the end.
+         */
+        public String next() throws IOException {
+            while (!queue.isEmpty()) {
+                Source source = queue.poll();
+                String record = source.current;
+
+                if (source.advance()) {
+                    queue.add(source);
+                }
+
+                if (!record.equals(last)) {
+                    last = record;
+                    return record;
+                }
+            }
+
+            return null;
+        }
+
+        public void close() {
+            for (Source source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * One sorted input of a merge: a run file or the in memory records.
+     */
+    private static class Source implements Comparable<Source> {
+        private DataInputStream in;
+        private List<String> records;
+        private int index;
+        private String current;
+
+        Source(DataInputStream in, List<String> records) {
+            this.in = in;
+            this.records = records;
+        }
+
+        boolean advance() throws IOException {
+            if (records != null) {
+                current = (index < records.size()) ? records.get(index++)
+                        : null;
+            } else {
+                try {
+                    current = in.readUTF();
+                } catch (EOFException e) {
+                    current = null;
+                }
+            }
+
+            return current != null;
+        }
+
+        public int compareTo(Source o) {
+            return current.compareTo(o.current);
+        }
+
+        void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
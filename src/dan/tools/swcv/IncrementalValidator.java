@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Validates only what changed since the last successful validation
+ * (--incremental).
+ * 
+ * After a SWC passes, the state file records the package order and, for
+ * each script in the catalog, a hash of its name and a fingerprint of its
+ * def and dep symbol ids. On the next run a script is looked up by name
+ * and is unchanged if its fingerprint is; the mod written by the compiler
+ * is not trusted, as sources can change without it. A dependency that
+ * passed last time can only fail now if its script changed or if the
+ * symbol it uses was external then and is defined by a changed script
+ * now. So only the deps of new or changed scripts, and the package edges
+ * into the packages of their defs, are checked. Scripts without a name
+ * always count as changed.
+ * 
+ * The state file is a header followed by fixed size records, one per
+ * script; a later record replaces an earlier one of the same name. After a
+ * passing incremental check only the records of the changed scripts are
+ * appended. The file is rewritten after a full validation, when scripts
+ * were removed or when half of its records are out of date.
+ * 
+ * The incremental check only ever answers "passes". If it finds a
+ * violation, if most scripts changed, or if the state is missing,
+ * unreadable or was written for a different package order, the caller runs
+ * the full validation, so the output is always the same as a full run.
+ * 
+ * State layout (big endian):
+ * 
+ *     int     magic, int version
+ *     int     package order length, package order (UTF-8)
+ *     records until the end of the file:
+ *             long name hash, long fingerprint
+ */
+class IncrementalValidator {
+    private static final int MAGIC = 0x53574349; // "SWCI"
+    private static final int VERSION = 3;
+    private static final int RECORD_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File stateFile;
+
+    // The records read by check(), without the replaced ones, and an open
+    // addressing table of record index + 1 by name hash.
+    private long[] names;
+    private long[] fingerprints;
+    private int recordCount;
+    private int[] slots;
+
+    // The number of records in the file, including replaced ones.
+    private int fileRecordCount;
+
+    // Set by a check() that passed: the scripts that changed since the
+    // state was written, and whether any of its scripts are gone.
+    private int[] changed;
+    private boolean removed;
+
+    // The fingerprints of the scripts of the SWC last checked or saved.
+    private Swc swc;
+    private long[] scriptFingerprints;
+
+    public IncrementalValidator(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Returns true if the SWC is known to pass: every package is ranked
+     * and the dependencies added since the last successful validation are
+     * allowed. Returns false if a full validation is needed.
+     * 
+     * Uses of library symbols (libraries may be null) are always checked,
+     * as the libraries may have changed; they are few package edges.
+     */
+    public boolean check(Swc swc, DependencyRules order,
+            LibraryIndex libraries) {
+        changed = null;
+
+        if (!readState(order)) {
+            return false;
+        }
+
+        DependencyGraph graph = swc.getDependencyGraph();
+        SymbolTable symbols = graph.getSymbolTable();
+        ScriptTable scripts = swc.getScriptTable();
+        int n = scripts.getScriptCount();
+        int[] ranks = new int[graph.getPackageCount()];
+        boolean[] matched = new boolean[recordCount];
+        int matchedCount = 0;
+        int[] changes = new int[n];
+        int changeCount = 0;
+
+        for (int p = 0; p < ranks.length; p++) {
+            ranks[p] = order.getGroup(graph.getPackageName(p));
+
+            if (ranks[p] == -1) {
+                return false;
+            }
+        }
+
+        long[] current = getFingerprints(swc);
+
+        for (int i = 0; i < n; i++) {
+            long name = scripts.getName(i);
+            int r = (name != 0) ? find(name) : -1;
+
+            if (r != -1 && !matched[r]) {
+                matched[r] = true;
+                matchedCount++;
+            }
+
+            if (r == -1 || fingerprints[r] != current[i]) {
+                changes[changeCount++] = i;
+            }
+        }
+
+        // A full validation costs about as much when most scripts changed.
+        if (2 * changeCount > n) {
+            return false;
+        }
+
+        // Deps of new and changed scripts.
+        boolean[] changedPackages = new boolean[ranks.length];
+
+        for (int k = 0; k < changeCount; k++) {
+            int script = changes[k];
+
+            if (!checkScript(graph, scripts, order, ranks, script)) {
+                return false;
+            }
+
+            changedPackages[graph.getOwner(scripts.getDef(script))] = true;
+        }
+
+        // A changed script may define a symbol that unchanged scripts used
+        // while it was external. No package may use a package of a changed
+        // script that it is not allowed to use.
+        for (int q = 0; q < ranks.length; q++) {
+            if (!changedPackages[q]) {
+                continue;
+            }
+
+            for (int p = 0; p < ranks.length; p++) {
+                if (DependencyValidator.isViolation(order, ranks[p], ranks[q])
+                        && graph.hasEdge(p, q)) {
+                    return false;
+                }
+            }
+        }
+
+        if (libraries != null) {
+            for (int p = 0; p < ranks.length; p++) {
+                for (int i = libraries.getEdgesStart(p); i < libraries
+                        .getEdgesEnd(p); i++) {
+                    int group = order.getGroup(symbols
+                            .getPackageName(libraries.getEdgeTarget(i)));
+
+                    if (DependencyValidator.isViolation(order, ranks[p],
+                            group)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        changed = Arrays.copyOf(changes, changeCount);
+        removed = matchedCount < recordCount;
+        return true;
+    }
+
+    /**
+     * Records the scripts of a SWC that passed validation. After a check()
+     * that passed, only the changed scripts are written.
+     */
+    public void save(Swc swc, DependencyRules order) throws Exception {
+        ScriptTable scripts = swc.getScriptTable();
+        long[] current = getFingerprints(swc);
+
+        if (changed != null && !removed
+                && fileRecordCount + changed.length <= 2 * scripts
+                        .getScriptCount()) {
+            if (changed.length > 0) {
+                append(scripts, current, changed);
+            }
+
+            return;
+        }
+
+        File dir = stateFile.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("swcv", ".tmp", dir);
+
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)));
+
+            try {
+                byte[] spec = order.getSpecification().getBytes(UTF8);
+
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(spec.length);
+                out.write(spec);
+
+                for (int i = 0; i < scripts.getScriptCount(); i++) {
+                    out.writeLong(scripts.getName(i));
+                    out.writeLong(current[i]);
+                }
+            } finally {
+                out.close();
+            }
+
+            Files.move(tmp.toPath(), stateFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Appends the records of scripts to the state file. A partly written
+     * record makes the file unreadable, which only causes a full
+     * validation.
+     */
+    private void append(ScriptTable scripts, long[] current, int[] which)
+            throws Exception {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(stateFile, true)));
+
+        try {
+            for (int i : which) {
+                out.writeLong(scripts.getName(i));
+                out.writeLong(current[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the fingerprint of every script of a SWC: a hash of its def
+     * and of the set of its dep symbol ids.
+     */
+    private long[] getFingerprints(Swc swc) {
+        if (swc == this.swc) {
+            return scriptFingerprints;
+        }
+
+        SymbolTable symbols = swc.getDependencyGraph().getSymbolTable();
+        ScriptTable scripts = swc.getScriptTable();
+        long[] symbolHashes = new long[symbols.getSymbolCount()];
+        long[] result = new long[scripts.getScriptCount()];
+
+        for (int i = 0; i < symbolHashes.length; i++) {
+            symbolHashes[i] = ScriptTable.hashName(symbols.getSymbol(i)
+                    .toString());
+        }
+
+        for (int i = 0; i < result.length; i++) {
+            long deps = 0;
+
+            // A sum, so the order the compiler lists deps in does not
+            // matter; the count tells repeated deps apart.
+            for (int j = scripts.getDepsStart(i); j < scripts.getDepsEnd(i);
+                    j++) {
+                deps += symbolHashes[scripts.getDep(j)];
+            }
+
+            deps += scripts.getDepsEnd(i) - scripts.getDepsStart(i);
+            result[i] = symbolHashes[scripts.getDef(i)] * 31 + mix(deps);
+        }
+
+        this.swc = swc;
+        scriptFingerprints = result;
+        return result;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    /**
+     * Checks the deps of a script.
+     */
+    private static boolean checkScript(DependencyGraph graph,
+            ScriptTable scripts, DependencyRules order, int[] ranks,
+            int script) {
+        int p = graph.getOwner(scripts.getDef(script));
+
+        for (int j = scripts.getDepsStart(script); j < scripts
+                .getDepsEnd(script); j++) {
+            int owner = graph.getOwner(scripts.getDep(j));
+
+            if (owner != -1
+                    && DependencyValidator.isViolation(order, ranks[p],
+                            ranks[owner])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the state file into the record table. Returns false if it is
+     * missing, unreadable or was written for another package order.
+     */
+    private boolean readState(DependencyRules order) {
+        ByteBuffer buf;
+
+        if (!stateFile.isFile()) {
+            return false;
+        }
+
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(stateFile.toPath()));
+
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return false;
+            }
+
+            int length = buf.getInt();
+
+            if (length < 0 || length > buf.remaining()) {
+                return false;
+            }
+
+            byte[] spec = new byte[length];
+
+            buf.get(spec);
+
+            if (!order.getSpecification().equals(new String(spec, UTF8))
+                    || buf.remaining() % RECORD_SIZE != 0) {
+                return false;
+            }
+        } catch (Exception e) {
+            return false;
+        }
+
+        fileRecordCount = buf.remaining() / RECORD_SIZE;
+        names = new long[fileRecordCount];
+        fingerprints = new long[fileRecordCount];
+        recordCount = 0;
+        slots = new int[Integer.highestOneBit(fileRecordCount + 1) * 4];
+
+        for (int i = 0; i < fileRecordCount; i++) {
+            long name = buf.getLong();
+            int r = find(name);
+
+            if (r == -1) {
+                r = recordCount++;
+                names[r] = name;
+                slots[getSlot(name)] = r + 1;
+            }
+
+            fingerprints[r] = buf.getLong();
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the record of a script name hash, or -1.
+     */
+    private int find(long name) {
+        return slots[getSlot(name)] - 1;
+    }
+
+    /**
+     * Returns the slot of a name hash: its own, or the empty slot it would
+     * take (linear probing).
+     */
+    private int getSlot(long name) {
+        int mask = slots.length - 1;
+        int slot = (int) (name ^ (name >>> 32)) & mask;
+
+        while (slots[slot] != 0 && names[slots[slot] - 1] != name) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+}
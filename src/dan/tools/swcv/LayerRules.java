@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Layered architecture rules: packages are put into named layers and the
+ * dependencies allowed between layers are listed.
+ * 
+ * The specification is a list of statements, one per line or separated by
+ * semicolons, with # starting a comment:
+ * 
+ *     util: com.acme.util.**
+ *     model: com.acme.model.**
+ *     ui: com.acme.ui.**, com.acme.widgets
+ *     plugins: com.acme.plugins.**
+ *     ui -> model, util
+ *     model -> util
+ *     plugins -> ui
+ * 
+ * "name: packages" declares a layer; packages are names or patterns, as in
+ * a PackageOrder, and a name or pattern may only be in one layer (a package
+ * matched by patterns of two layers belongs to the more specific one).
+ * "name -> names" allows a layer to use other layers. A
+ * layer may always use itself, and allowed dependencies are transitive:
+ * above, plugins may use model and util through ui, while model cannot use
+ * ui or plugins. The transitive closure is computed once, as a bit matrix
+ * of layers, so checking a dependency is one bit test.
+ */
+class LayerRules extends DependencyRules {
+    private List<String> layerNames;
+    private PackageOrder packages;
+    private int words;
+    private long[] allowed;
+    private String specification;
+
+    public LayerRules(String spec) throws Exception {
+        HashMap<String, Integer> layers = new HashMap<String, Integer>();
+        HashMap<String, String> members = new HashMap<String, String>();
+        List<String> edges = new ArrayList<String>();
+        StringBuilder groups = new StringBuilder();
+        StringBuilder normal = new StringBuilder();
+
+        layerNames = new ArrayList<String>();
+
+        for (String line : spec.split("[\n;]")) {
+            int comment = line.indexOf('#');
+            String statement = strip((comment != -1) ? line.substring(0,
+                    comment) : line);
+
+            if (statement.length() == 0) {
+                continue;
+            }
+
+            normal.append(statement).append(';');
+
+            int arrow = statement.indexOf("->");
+            int colon = statement.indexOf(':');
+
+            if (arrow != -1) {
+                edges.add(statement);
+            } else if (colon > 0 && colon < statement.length() - 1) {
+                String name = statement.substring(0, colon);
+
+                if (layers.containsKey(name)) {
+                    throw new Exception("layer rules parse error: layer "
+                            + name + " is declared twice");
+                }
+
+                layers.put(name, Integer.valueOf(layerNames.size()));
+                layerNames.add(name);
+
+                // The package order would silently keep the later layer.
+                for (String member : statement.substring(colon + 1).split(
+                        ",")) {
+                    String other = members.put(member, name);
+
+                    if (other != null && !other.equals(name)) {
+                        throw new Exception("layer rules parse error: "
+                                + member + " is in layers " + other
+                                + " and " + name);
+                    }
+                }
+
+                // Layer i is rank i of a package order, which resolves
+                // package names and patterns.
+                if (groups.length() > 0) {
+                    groups.append(',');
+                }
+
+                groups.append('(').append(statement.substring(colon + 1))
+                        .append(')');
+            } else {
+                throw new Exception(
+                        "layer rules parse error: expected 'layer: packages' or 'layer -> layers': "
+                                + statement);
+            }
+        }
+
+        packages = new PackageOrder(new StringReader(groups.toString()));
+        words = (layerNames.size() + 63) >>> 6;
+        allowed = new long[layerNames.size() * words];
+        specification = normal.toString();
+
+        for (int i = 0; i < layerNames.size(); i++) {
+            allow(i, i);
+        }
+
+        for (String edge : edges) {
+            int arrow = edge.indexOf("->");
+            int from = findLayer(layers, edge.substring(0, arrow));
+
+            for (String to : edge.substring(arrow + 2).split(",")) {
+                allow(from, findLayer(layers, to));
+            }
+        }
+
+        computeClosure();
+    }
+
+    public String getSpecification() {
+        return specification;
+    }
+
+    public int getGroup(String pkg) {
+        return packages.getRank(pkg);
+    }
+
+    public boolean canDepend(int from, int to) {
+        return (allowed[from * words + (to >>> 6)] & (1L << to)) != 0;
+    }
+
+    private void allow(int from, int to) {
+        allowed[from * words + (to >>> 6)] |= 1L << to;
+    }
+
+    /**
+     * Makes allowed transitive: if i may use k, i may use everything k may
+     * use.
+     */
+    private void computeClosure() {
+        int n = layerNames.size();
+
+        for (int k = 0; k < n; k++) {
+            for (int i = 0; i < n; i++) {
+                if (canDepend(i, k)) {
+                    for (int w = 0; w < words; w++) {
+                        allowed[i * words + w] |= allowed[k * words + w];
+                    }
+                }
+            }
+        }
+    }
+
+    private static int findLayer(HashMap<String, Integer> layers, String name)
+            throws Exception {
+        Integer layer = layers.get(name);
+
+        if (layer == null) {
+            throw new Exception("layer rules parse error: unknown layer "
+                    + name);
+        }
+
+        return layer.intValue();
+    }
+
+    private static String strip(String s) {
+        StringBuilder buf = new StringBuilder();
+
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isWhitespace(s.charAt(i))) {
+                buf.append(s.charAt(i));
+            }
+        }
+
+        return buf.toString();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The symbols a SWC uses from the library SWCs it links against
+ * (--library-path).
+ * 
+ * The SWC's SymbolTable serves as the index for all of the SWCs: a library
+ * symbol is looked up by its catalog id and shares the SWC's canonical
+ * Symbol. For each symbol, the index records which library owns it. The
+ * first library on the path that defines a symbol owns it, and symbols the
+ * SWC defines itself are never library symbols. Only the defs of a library
+ * catalog are read, as it streams by, and a def the SWC does not use is
+ * dropped on the spot. Memory use therefore does not grow with the size of
+ * the libraries.
+ * 
+ * Once loaded, the uses of library symbols are collapsed into edges from
+ * each SWC package to library packages (SymbolTable package ids), with a
+ * witness dependency per edge, like the package edges of DependencyGraph.
+ */
+class LibraryIndex {
+    private DependencyGraph graph;
+    private List<String> libraryNames;
+    private int[] symbolLibraries;
+    private int symbolCount;
+    private int[] edgesOffsets;
+    private int[] edgeTargets;
+    private int[] edgeWitnesses;
+
+    private LibraryIndex(DependencyGraph graph) {
+        this.graph = graph;
+        this.libraryNames = new ArrayList<String>();
+        this.symbolLibraries = new int[graph.getSymbolTable()
+                .getSymbolCount()];
+        Arrays.fill(symbolLibraries, -1);
+    }
+
+    /**
+     * Loads the library SWCs used by the SWC of graph. The graph is not
+     * modified.
+     */
+    public static LibraryIndex build(DependencyGraph graph,
+            List<String> swcFiles) throws Exception {
+        LibraryIndex index = new LibraryIndex(graph);
+
+        for (String swcFile : swcFiles) {
+            index.load(swcFile);
+        }
+
+        index.buildEdges();
+        return index;
+    }
+
+    public int getLibraryCount() {
+        return libraryNames.size();
+    }
+
+    /**
+     * Returns the number of symbols used by the SWC that a library owns.
+     */
+    public int getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * Returns the library that owns a symbol, or -1 if no library does.
+     */
+    public int getLibrary(int symbol) {
+        return symbolLibraries[symbol];
+    }
+
+    public String getLibraryName(int library) {
+        return libraryNames.get(library);
+    }
+
+    public int getEdgesStart(int p) {
+        return edgesOffsets[p];
+    }
+
+    public int getEdgesEnd(int p) {
+        return edgesOffsets[p + 1];
+    }
+
+    /**
+     * Returns the library package (a SymbolTable package id) an edge points
+     * to.
+     */
+    public int getEdgeTarget(int i) {
+        return edgeTargets[i];
+    }
+
+    /**
+     * Returns the index (for DependencyGraph.getDependency) of the first
+     * dependency that makes an edge.
+     */
+    public int getEdgeWitness(int i) {
+        return edgeWitnesses[i];
+    }
+
+    private void load(String swcFile) throws Exception {
+        final SymbolTable symbols = graph.getSymbolTable();
+        final int library = libraryNames.size();
+        InputStream in = SwcArchive.openCatalog(new File(swcFile));
+
+        libraryNames.add(swcFile);
+
+        try {
+            new CatalogParser(new CatalogHandler() {
+                public void script(String name, long mod, String defId,
+                        List<String> depIds) throws Exception {
+                    Symbol def = symbols.find(defId);
+
+                    if (def != null && !graph.isInternal(def.getId())
+                            && symbolLibraries[def.getId()] == -1) {
+                        symbolLibraries[def.getId()] = library;
+                        symbolCount++;
+                    }
+                }
+            }).parse(in);
+        } finally {
+            try {
+                in.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private void buildEdges() {
+        SymbolTable symbols = graph.getSymbolTable();
+        int n = graph.getPackageCount();
+        int count = 0;
+
+        // The marks remember the edges of package p, marked p + 1.
+        int[] marks = new int[symbols.getPackageCount()];
+
+        edgesOffsets = new int[n + 1];
+        edgeTargets = new int[graph.getDependenciesStart(n)];
+        edgeWitnesses = new int[edgeTargets.length];
+
+        for (int p = 0; p < n; p++) {
+            for (int i = graph.getDependenciesStart(p); i < graph
+                    .getDependenciesEnd(p); i++) {
+                int dep = graph.getDependency(i);
+
+                if (symbolLibraries[dep] != -1) {
+                    int q = symbols.getSymbol(dep).getPackageId();
+
+                    if (marks[q] != p + 1) {
+                        marks[q] = p + 1;
+                        edgeTargets[count] = q;
+                        edgeWitnesses[count] = i;
+                        count++;
+                    }
+                }
+            }
+
+            edgesOffsets[p + 1] = count;
+        }
+
+        edgeTargets = Arrays.copyOf(edgeTargets, count);
+        edgeWitnesses = Arrays.copyOf(edgeWitnesses, count);
+    }
+}
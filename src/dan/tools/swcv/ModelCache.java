@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.File;
+import java.io.FileReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory, least recently used cache of loaded Swc models and parsed
+ * package order (DependencyRules) files, used by the swcv server (see SwcServer).
+ * 
+ * Entries are keyed by the file's canonical path, size and modification
+ * time, so a file that changes is loaded again. Loaded models are never
+ * modified, so one instance can be handed to several requests at once.
+ */
+class ModelCache {
+    private LinkedHashMap<String, Swc> swcs;
+    private LinkedHashMap<String, DependencyRules> packageOrders;
+
+    public ModelCache(int maxSwcs, int maxPackageOrders) {
+        swcs = createLruMap(maxSwcs);
+        packageOrders = createLruMap(maxPackageOrders);
+    }
+
+    /**
+     * Returns the loaded SWC, loading it (through cache, which may be null)
+     * if it is not in memory or has changed since it was loaded.
+     */
+    public Swc getSwc(String swcFile, CatalogCache cache) throws Exception {
+        String key = getKey(swcFile);
+        Swc swc;
+
+        synchronized (this) {
+            swc = swcs.get(key);
+        }
+
+        if (swc == null) {
+            swc = new Swc(swcFile, cache);
+
+            synchronized (this) {
+                swcs.put(key, swc);
+            }
+        }
+
+        return swc;
+    }
+
+    /**
+     * Returns the parsed package order file, parsing it if it is not in
+     * memory or has changed since it was parsed.
+     */
+    public DependencyRules getPackageOrder(String packageOrderFile)
+            throws Exception {
+        String key = getKey(packageOrderFile);
+        DependencyRules packageOrder;
+
+        synchronized (this) {
+            packageOrder = packageOrders.get(key);
+        }
+
+        if (packageOrder == null) {
+            FileReader reader = new FileReader(packageOrderFile);
+
+            try {
+                packageOrder = DependencyRules.read(reader);
+            } finally {
+                try {
+                    reader.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+
+            synchronized (this) {
+                packageOrders.put(key, packageOrder);
+            }
+        }
+
+        return packageOrder;
+    }
+
+    private static String getKey(String file) throws Exception {
+        File f = new File(file).getCanonicalFile();
+        return f.getPath() + "|" + f.length() + "|" + f.lastModified();
+    }
+
+    private static <V> LinkedHashMap<String, V> createLruMap(final int max) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+}
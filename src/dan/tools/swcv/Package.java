@@ -22,21 +22,25 @@
 
 package dan.tools.swcv;
 
-import java.util.Vector;
+import java.util.LinkedHashSet;
 
 /**
  * Contains the exports and dependencies of an Actionscript 3 
  * package.
+ * 
+ * Exports and dependencies are kept in insertion ordered hash sets, so
+ * adding and looking up symbols is constant time while iteration still
+ * returns symbols in the order they were first seen in the catalog.
  */
 public class Package {
     private String name;
-    private Vector<Symbol> exports;
-    private Vector<Symbol> dependencies;
+    private LinkedHashSet<Symbol> exports;
+    private LinkedHashSet<Symbol> dependencies;
 
     public Package(String name) {
         this.name = name;
-        this.exports = new Vector<Symbol>();
-        this.dependencies = new Vector<Symbol>();
+        this.exports = new LinkedHashSet<Symbol>();
+        this.dependencies = new LinkedHashSet<Symbol>();
     }
 
     public String getName() {
@@ -51,19 +55,23 @@ public class Package {
         return dependencies;
     }
 
+    public int getExportCount() {
+        return exports.size();
+    }
+
+    public int getDependencyCount() {
+        return dependencies.size();
+    }
+
     public boolean hasExport(Symbol exp) {
         return exports.contains(exp);
     }
 
     void addExport(Symbol export) {
-        if (!exports.contains(export)) {
-            exports.add(export);
-        }
+        exports.add(export);
     }
 
     void addDependency(Symbol dependency) {
-        if (!dependencies.contains(dependency)) {
-            dependencies.add(dependency);
-        }
+        dependencies.add(dependency);
     }
 }
@@ -23,25 +23,60 @@
 package dan.tools.swcv;
 
 import java.io.Reader;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A package dependency order: the rank of each package, parsed from a
+ * comma separated specification.
+ * 
+ * Besides package names, the specification may hold patterns that rank
+ * many packages at once:
+ * 
+ *     a.b.*     packages exactly one segment below a.b (a.b.c, not a.b
+ *               or a.b.c.d)
+ *     a.b.**    a.b and every package below it
+ * 
+ * A package named in the specification gets its own rank. Otherwise the
+ * most specific matching pattern, the one with the longest prefix, ranks
+ * it; for the same prefix, * is more specific than **. Patterns are
+ * compiled into a trie of package name segments, so resolving a package
+ * costs one step per segment of its name however many patterns there are,
+ * and each package is resolved only once. A PackageOrder can be used by
+ * several threads at once.
+ * 
+ * As DependencyRules, the groups of a PackageOrder are its ranks.
+ */
+public class PackageOrder extends DependencyRules {
+    private static final String ONE_SEGMENT = "*";
+    private static final String ANY_SEGMENTS = "**";
 
-public class PackageOrder {
     private Hashtable<String, Integer> pacakageNameToRank;
     private Vector<Vector<String>> rankToPackageNames;
+    private String specification;
+    private PatternNode patterns;
+    private ConcurrentHashMap<String, Integer> resolved;
 
     public PackageOrder(Reader reader) throws Exception {
         pacakageNameToRank = new Hashtable<String, Integer>();
+        resolved = new ConcurrentHashMap<String, Integer>();
         rankToPackageNames = new Vector<Vector<String>>();
         rankToPackageNames.add(new Vector<String>());
 
         StringBuffer buf = new StringBuffer();
+        StringBuffer spec = new StringBuffer();
         int c;
         boolean maintainRank = false;
 
         while ((c = reader.read()) != -1) {
             char ch = (char) c;
 
+            if (!Character.isWhitespace(ch)) {
+                spec.append(ch);
+            }
+
             if (ch == ',') {
                 if (buf.length() > 0) {
                     addPackage(buf.toString());
@@ -71,11 +106,75 @@ public class PackageOrder {
             throw new Exception(
                     "package order parse error: parentheses mismatch");
         }
+
+        specification = spec.toString();
+    }
+
+    /**
+     * Returns the specification text without whitespace. Two package orders
+     * with the same specification rank every package the same way.
+     */
+    public String getSpecification() {
+        return specification;
+    }
+
+    public int getGroup(String pkg) {
+        return getRank(pkg);
+    }
+
+    /**
+     * A package may depend on packages of its own or a lower rank.
+     */
+    public boolean canDepend(int from, int to) {
+        return to <= from;
     }
 
     public int getRank(String pkg) {
         Integer rank = pacakageNameToRank.get(pkg);
-        return (rank != null) ? rank.intValue() : -1;
+
+        if (rank != null) {
+            return rank.intValue();
+        } else if (patterns == null) {
+            return -1;
+        }
+
+        rank = resolved.get(pkg);
+
+        if (rank == null) {
+            rank = Integer.valueOf(matchPatterns(pkg));
+            resolved.put(pkg, rank);
+        }
+
+        return rank.intValue();
+    }
+
+    /**
+     * Returns the rank of the most specific pattern matching pkg, or -1.
+     */
+    private int matchPatterns(String pkg) {
+        String[] segments = pkg.split("\\.");
+        PatternNode node = patterns;
+        int rank = -1;
+
+        for (int i = 0; node != null; i++) {
+            // node matches the first i segments.
+            if (node.anySegmentsRank != -1) {
+                rank = node.anySegmentsRank;
+            }
+
+            if (i == segments.length - 1 && node.oneSegmentRank != -1) {
+                rank = node.oneSegmentRank;
+            }
+
+            if (i == segments.length) {
+                break;
+            }
+
+            node = (node.children != null) ? node.children.get(segments[i])
+                    : null;
+        }
+
+        return rank;
     }
 
     public Iterable<String> pacakgesIterator(int rank) {
@@ -86,10 +185,14 @@ public class PackageOrder {
         }
     }
 
-    private void addPackage(String packageName) {
+    private void addPackage(String packageName) throws Exception {
         int rank = rankToPackageNames.size() - 1;
 
-        pacakageNameToRank.put(packageName, new Integer(rank));
+        if (packageName.indexOf('*') != -1) {
+            addPattern(packageName, rank);
+        } else {
+            pacakageNameToRank.put(packageName, new Integer(rank));
+        }
 
         Vector<String> pkgs = rankToPackageNames.get(rank);
 
@@ -97,4 +200,56 @@ public class PackageOrder {
             pkgs.add(packageName);
         }
     }
+
+    private void addPattern(String pattern, int rank) throws Exception {
+        String[] segments = pattern.split("\\.", -1);
+        String last = segments[segments.length - 1];
+
+        if (!ONE_SEGMENT.equals(last) && !ANY_SEGMENTS.equals(last)) {
+            throw new Exception("package order parse error: bad pattern "
+                    + pattern);
+        }
+
+        if (patterns == null) {
+            patterns = new PatternNode();
+        }
+
+        PatternNode node = patterns;
+
+        for (int i = 0; i < segments.length - 1; i++) {
+            if (segments[i].length() == 0 || segments[i].indexOf('*') != -1) {
+                throw new Exception(
+                        "package order parse error: bad pattern " + pattern);
+            }
+
+            if (node.children == null) {
+                node.children = new HashMap<String, PatternNode>();
+            }
+
+            PatternNode child = node.children.get(segments[i]);
+
+            if (child == null) {
+                child = new PatternNode();
+                node.children.put(segments[i], child);
+            }
+
+            node = child;
+        }
+
+        if (ONE_SEGMENT.equals(last)) {
+            node.oneSegmentRank = rank;
+        } else {
+            node.anySegmentsRank = rank;
+        }
+    }
+
+    /**
+     * A node of the pattern trie, reached by the segments of a package name
+     * prefix. The trie is not modified after parsing.
+     */
+    private static class PatternNode {
+        private HashMap<String, PatternNode> children;
+        private int oneSegmentRank = -1;
+        private int anySegmentsRank = -1;
+    }
 }
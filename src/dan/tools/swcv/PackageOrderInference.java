@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Infers a package order from the package edges of a DependencyGraph.
+ * 
+ * The strongly connected components of the package graph are found with
+ * Tarjan's algorithm, run with explicit stacks so that deep graphs cannot
+ * overflow the call stack. A component of more than one package is a
+ * dependency cycle, and no package order can separate its packages.
+ * 
+ * When there is no cycle, each package gets the smallest rank that puts it
+ * above every package it depends on: packages that depend on no other
+ * package have rank 0, any other package has one more than the highest
+ * rank of its dependencies. Packages of the same rank never depend on each
+ * other, so they are written as one ( ) group.
+ */
+class PackageOrderInference {
+    private DependencyGraph graph;
+    private List<int[]> cycles;
+    private int[] ranks;
+
+    public PackageOrderInference(DependencyGraph graph) {
+        this.graph = graph;
+        this.cycles = new ArrayList<int[]>();
+
+        int[] order = findComponents();
+
+        if (cycles.isEmpty()) {
+            rank(order);
+        }
+    }
+
+    /**
+     * Returns the packages of each dependency cycle, sorted, in order of
+     * their first package.
+     */
+    public List<int[]> getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns the inferred rank of each package, or null if the graph has
+     * cycles.
+     */
+    public int[] getRanks() {
+        return ranks;
+    }
+
+    /**
+     * Returns the shortest cycle through the first package of a component,
+     * as a list of packages where each depends on the next and the last
+     * depends on the first.
+     */
+    public int[] findShortestCycle(int[] component) {
+        int n = graph.getPackageCount();
+        int start = component[0];
+        boolean[] member = new boolean[n];
+        int[] parent = new int[n];
+        int[] queue = new int[component.length];
+        int head = 0;
+        int tail = 0;
+
+        for (int p : component) {
+            member[p] = true;
+        }
+
+        Arrays.fill(parent, -1);
+        queue[tail++] = start;
+
+        // Breadth first search inside the component, back to start.
+        while (head < tail) {
+            int p = queue[head++];
+
+            for (int i = graph.getEdgesStart(p); i < graph.getEdgesEnd(p); i++) {
+                int q = graph.getEdgeTarget(i);
+
+                // A package depending on itself is not a cycle.
+                if (q == start && p != start) {
+                    int length = 1;
+
+                    for (int r = p; r != start; r = parent[r]) {
+                        length++;
+                    }
+
+                    int[] cycle = new int[length];
+
+                    for (int r = p; r != start; r = parent[r]) {
+                        cycle[--length] = r;
+                    }
+
+                    cycle[0] = start;
+                    return cycle;
+                }
+
+                if (member[q] && parent[q] == -1 && q != start) {
+                    parent[q] = p;
+                    queue[tail++] = q;
+                }
+            }
+        }
+
+        // Unreachable for a strongly connected component.
+        return component;
+    }
+
+    /**
+     * Returns the dependency that makes package p depend on package q, or
+     * -1 if it does not.
+     */
+    public int findWitness(int p, int q) {
+        for (int i = graph.getEdgesStart(p); i < graph.getEdgesEnd(p); i++) {
+            if (graph.getEdgeTarget(i) == q) {
+                return graph.getDependency(graph.getEdgeWitness(i));
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the inferred order in PackageOrder syntax, one rank per line,
+     * or null if the graph has cycles.
+     */
+    public String toSpecification() {
+        if (ranks == null) {
+            return null;
+        }
+
+        int maxRank = -1;
+
+        for (int r : ranks) {
+            maxRank = Math.max(maxRank, r);
+        }
+
+        List<List<String>> byRank = new ArrayList<List<String>>();
+        StringBuilder buf = new StringBuilder();
+
+        for (int r = 0; r <= maxRank; r++) {
+            byRank.add(new ArrayList<String>());
+        }
+
+        for (int p = 0; p < ranks.length; p++) {
+            byRank.get(ranks[p]).add(graph.getPackageName(p));
+        }
+
+        for (int r = 0; r <= maxRank; r++) {
+            List<String> names = byRank.get(r);
+
+            if (names.size() > 1) {
+                buf.append('(');
+            }
+
+            for (int i = 0; i < names.size(); i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+
+                buf.append(names.get(i));
+            }
+
+            if (names.size() > 1) {
+                buf.append(')');
+            }
+
+            if (r < maxRank) {
+                buf.append(',');
+            }
+
+            buf.append('\n');
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Runs Tarjan's algorithm, recording the components of more than one
+     * package in cycles. Returns the packages in the order their components
+     * were completed, which puts every package after the packages it
+     * depends on (within an acyclic graph).
+     */
+    private int[] findComponents() {
+        int n = graph.getPackageCount();
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] next = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] calls = new int[n];
+        int[] order = new int[n];
+        int sp = 0;
+        int orderCount = 0;
+        int counter = 0;
+
+        Arrays.fill(index, -1);
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+
+            int cp = 0;
+
+            calls[cp++] = root;
+            index[root] = low[root] = counter++;
+            next[root] = graph.getEdgesStart(root);
+            stack[sp++] = root;
+            onStack[root] = true;
+
+            while (cp > 0) {
+                int v = calls[cp - 1];
+
+                if (next[v] < graph.getEdgesEnd(v)) {
+                    int w = graph.getEdgeTarget(next[v]++);
+
+                    if (index[w] == -1) {
+                        // Descend into w.
+                        calls[cp++] = w;
+                        index[w] = low[w] = counter++;
+                        next[w] = graph.getEdgesStart(w);
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+
+                    continue;
+                }
+
+                // All of v's edges are done; return to the caller.
+                cp--;
+
+                if (cp > 0) {
+                    int u = calls[cp - 1];
+                    low[u] = Math.min(low[u], low[v]);
+                }
+
+                if (low[v] == index[v]) {
+                    int start = sp;
+
+                    do {
+                        start--;
+                        onStack[stack[start]] = false;
+                    } while (stack[start] != v);
+
+                    if (sp - start > 1) {
+                        int[] component = Arrays.copyOfRange(stack, start, sp);
+
+                        Arrays.sort(component);
+                        cycles.add(component);
+                    }
+
+                    for (int i = start; i < sp; i++) {
+                        order[orderCount++] = stack[i];
+                    }
+
+                    sp = start;
+                }
+            }
+        }
+
+        if (cycles.size() > 1) {
+            // Components are found leaves first; list them by package.
+            Collections.sort(cycles, new Comparator<int[]>() {
+                public int compare(int[] a, int[] b) {
+                    return a[0] - b[0];
+                }
+            });
+        }
+
+        return order;
+    }
+
+    private void rank(int[] order) {
+        ranks = new int[graph.getPackageCount()];
+
+        for (int p : order) {
+            int rank = 0;
+
+            for (int i = graph.getEdgesStart(p); i < graph.getEdgesEnd(p); i++) {
+                int q = graph.getEdgeTarget(i);
+
+                if (q != p) {
+                    rank = Math.max(rank, ranks[q] + 1);
+                }
+            }
+
+            ranks[p] = rank;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * Writes the package report (--pkg-report) of a DependencyGraph.
+ * 
+ * The report is streamed one package at a time through a single buffered
+ * writer, in one of three formats:
+ * 
+ *     text   the tab indented report
+ *     json   {"packages": [ {"name": ..., "exports": [...], ...}, ... ]},
+ *            one package object per line
+ *     csv    package,kind,value rows, where kind is export, dependency,
+ *            dependency-package, external-dependency or
+ *            external-dependency-package
+ * 
+ * Dependencies are split into internal and external. Internal
+ * dependencies by package are the package's edges in the graph, which are
+ * kept in first use order; external ones are deduplicated with an int mark
+ * array indexed by package id, so the work per package is linear in its
+ * dependency count.
+ * 
+ * The formats are written one section item at a time (see beginPackage,
+ * beginSection and writeItem), so a report can also be written from
+ * sources other than a graph, ex. ExternalCatalog.
+ */
+class PackageReport {
+    public static final String TEXT = "text";
+    public static final String JSON = "json";
+    public static final String CSV = "csv";
+
+    // Sections of a package, in report order.
+    static final int EXPORTS = 0;
+    static final int DEPENDENCIES = 1;
+    static final int DEPENDENCY_PACKAGES = 2;
+    static final int EXTERNAL_DEPENDENCIES = 3;
+    static final int EXTERNAL_DEPENDENCY_PACKAGES = 4;
+
+    private static final String[] TEXT_SECTIONS = { "Exports",
+            "Dependencies", "Dependencies By Package",
+            "External Dependencies", "External Dependencies By Package" };
+    private static final String[] JSON_SECTIONS = { "exports",
+            "dependencies", "dependenciesByPackage", "externalDependencies",
+            "externalDependenciesByPackage" };
+    private static final String[] CSV_SECTIONS = { "export", "dependency",
+            "dependency-package", "external-dependency",
+            "external-dependency-package" };
+
+    private static final String EMPTY = "<Empty>";
+
+    private DependencyGraph graph;
+    private SymbolTable symbols;
+    private String format;
+    private BufferedWriter out;
+
+    // The package and section being written.
+    private String packageName;
+    private int packageCount;
+    private int section;
+    private int itemCount;
+
+    // Per package scratch lists, reused for every package.
+    private int[] internal;
+    private int[] external;
+    private int[] externalPackages;
+    private int internalCount;
+    private int externalCount;
+    private int externalPackageCount;
+
+    // The external packages already listed for the current package, marked
+    // with the package index + 1.
+    private int[] externalMarks;
+
+    public PackageReport(DependencyGraph graph, String format) {
+        this.graph = graph;
+        this.symbols = graph.getSymbolTable();
+        this.format = format;
+    }
+
+    /**
+     * Creates a report that is written item by item, without a graph.
+     */
+    PackageReport(String format) {
+        this.format = format;
+    }
+
+    public static boolean isFormat(String format) {
+        return TEXT.equals(format) || JSON.equals(format)
+                || CSV.equals(format);
+    }
+
+    /**
+     * Writes the report to a stream, UTF-8 encoded. The stream is flushed
+     * but not closed.
+     */
+    public void write(OutputStream stream) throws IOException {
+        int maxDependencies = 0;
+
+        for (int p = 0; p < graph.getPackageCount(); p++) {
+            maxDependencies = Math.max(maxDependencies, graph
+                    .getDependenciesEnd(p)
+                    - graph.getDependenciesStart(p));
+        }
+
+        internal = new int[maxDependencies];
+        external = new int[maxDependencies];
+        externalPackages = new int[maxDependencies];
+        externalMarks = new int[symbols.getPackageCount()];
+
+        begin(stream);
+
+        for (int p = 0; p < graph.getPackageCount(); p++) {
+            collect(p);
+            writePackage(p);
+        }
+
+        end();
+    }
+
+    /**
+     * Starts a report written item by item.
+     */
+    void begin(OutputStream stream) throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"),
+                1 << 16);
+        packageCount = 0;
+
+        if (JSON.equals(format)) {
+            out.write("{\"packages\": [");
+            out.newLine();
+        } else if (CSV.equals(format)) {
+            out.write("package,kind,value");
+            out.newLine();
+        }
+    }
+
+    void beginPackage(String name) throws IOException {
+        packageName = name;
+
+        if (JSON.equals(format)) {
+            if (packageCount > 0) {
+                out.write(",");
+                out.newLine();
+            }
+
+            out.write("{\"name\": ");
+            writeJsonString(name);
+        } else if (TEXT.equals(format)) {
+            out.write(name);
+            out.newLine();
+        }
+
+        packageCount++;
+    }
+
+    /**
+     * Starts one of the sections (EXPORTS...) of the current package.
+     * Every section must be written, in order.
+     */
+    void beginSection(int section) throws IOException {
+        this.section = section;
+        itemCount = 0;
+
+        if (JSON.equals(format)) {
+            out.write(", \"" + JSON_SECTIONS[section] + "\": [");
+        } else if (TEXT.equals(format)) {
+            out.write("\t" + TEXT_SECTIONS[section]);
+            out.newLine();
+        }
+    }
+
+    void writeItem(String item) throws IOException {
+        if (JSON.equals(format)) {
+            if (itemCount > 0) {
+                out.write(", ");
+            }
+
+            writeJsonString(item);
+        } else if (CSV.equals(format)) {
+            writeCsvRow(packageName, CSV_SECTIONS[section], item);
+        } else {
+            out.write("\t\t");
+            out.write(item);
+            out.newLine();
+        }
+
+        itemCount++;
+    }
+
+    void endSection() throws IOException {
+        if (JSON.equals(format)) {
+            out.write("]");
+        } else if (TEXT.equals(format) && itemCount == 0
+                && section != EXPORTS) {
+            out.write("\t\t");
+            out.write(EMPTY);
+            out.newLine();
+        }
+    }
+
+    void endPackage() throws IOException {
+        if (JSON.equals(format)) {
+            out.write("}");
+        }
+    }
+
+    /**
+     * Ends the report and flushes the stream.
+     */
+    void end() throws IOException {
+        if (JSON.equals(format)) {
+            if (packageCount > 0) {
+                out.newLine();
+            }
+
+            out.write("]}");
+            out.newLine();
+        }
+
+        out.flush();
+    }
+
+    private void collect(int p) {
+        internalCount = 0;
+        externalCount = 0;
+        externalPackageCount = 0;
+
+        for (int i = graph.getDependenciesStart(p); i < graph
+                .getDependenciesEnd(p); i++) {
+            int dep = graph.getDependency(i);
+            if (graph.isInternal(dep)) {
+                internal[internalCount++] = dep;
+            } else {
+                int pkg = symbols.getSymbol(dep).getPackageId();
+
+                external[externalCount++] = dep;
+
+                if (externalMarks[pkg] != p + 1) {
+                    externalMarks[pkg] = p + 1;
+                    externalPackages[externalPackageCount++] = pkg;
+                }
+            }
+        }
+    }
+
+    private void writePackage(int p) throws IOException {
+        beginPackage(graph.getPackageName(p));
+
+        beginSection(EXPORTS);
+
+        for (int i = graph.getExportsStart(p); i < graph.getExportsEnd(p); i++) {
+            writeItem(symbols.getSymbol(graph.getExport(i)).getName());
+        }
+
+        endSection();
+        beginSection(DEPENDENCIES);
+
+        for (int i = 0; i < internalCount; i++) {
+            writeItem(symbols.getSymbol(internal[i]).toString());
+        }
+
+        endSection();
+        beginSection(DEPENDENCY_PACKAGES);
+
+        for (int i = graph.getEdgesStart(p); i < graph.getEdgesEnd(p); i++) {
+            writeItem(graph.getPackageName(graph.getEdgeTarget(i)));
+        }
+
+        endSection();
+        beginSection(EXTERNAL_DEPENDENCIES);
+
+        for (int i = 0; i < externalCount; i++) {
+            writeItem(symbols.getSymbol(external[i]).toString());
+        }
+
+        endSection();
+        beginSection(EXTERNAL_DEPENDENCY_PACKAGES);
+
+        for (int i = 0; i < externalPackageCount; i++) {
+            writeItem(symbols.getPackageName(externalPackages[i]));
+        }
+
+        endSection();
+        endPackage();
+    }
+
+    private void writeJsonString(String s) throws IOException {
+        out.write('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+
+        out.write('"');
+    }
+
+    private void writeCsvRow(String pkg, String kind, String value)
+            throws IOException {
+        writeCsvField(pkg);
+        out.write(',');
+        out.write(kind);
+        out.write(',');
+        writeCsvField(value);
+        out.newLine();
+    }
+
+    private void writeCsvField(String s) throws IOException {
+        if (s.indexOf(',') == -1 && s.indexOf('"') == -1
+                && s.indexOf('\n') == -1) {
+            out.write(s);
+            return;
+        }
+
+        out.write('"');
+        out.write(s.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Validates a catalog.xml while it is being parsed.
+ * 
+ * The rules are loaded before the catalog is opened. A producer thread
+ * parses the catalog and passes its scripts, in batches, through a bounded
+ * queue to the calling thread, which checks each dep as it arrives. The
+ * group of a dep's package is known from its id, so only deps that would
+ * break the rules need more work: a dep on a symbol whose def has been
+ * seen is a confirmed violation; one on a symbol not seen yet is deferred
+ * until its def arrives, and dropped at the end if it never does (the
+ * symbol is external). Packages the rules do not cover are found as their
+ * first def arrives.
+ * 
+ * In fail-fast mode the first script that confirms a problem ends the
+ * run: the producer is interrupted and the rest of the catalog is not
+ * read. The problem reported is that script's package, if the rules do not
+ * cover it, or else the first violation it confirmed, with the classes
+ * found to use the symbol so far. A SWC fails exactly when it fails
+ * SwcValidator.validate, but the problem named can differ: the loaded
+ * model reports the first missing package, then the first violating
+ * package, in name order. With all violations the whole catalog is read
+ * and the result is the same as validate's.
+ */
+class PipelinedValidator {
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int BATCH_SIZE = 256;
+
+    // defGroups value of a symbol whose def has not been seen.
+    private static final int NOT_DEFINED = -2;
+
+    // Queued after the last batch of scripts.
+    private static final Object END = new Object();
+
+    private static final Comparator<Symbol> NAME_ORDER = new Comparator<Symbol>() {
+        public int compare(Symbol a, Symbol b) {
+            return a.toString().compareTo(b.toString());
+        }
+    };
+
+    private DependencyRules rules;
+    private boolean allViolations;
+    private SymbolTable symbols;
+
+    // By symbol id: NOT_DEFINED, or the group of the symbol's package once
+    // its def is seen.
+    private int[] defGroups;
+
+    // By package id: the group + 1, or 0 if not looked up yet.
+    private int[] packageGroups;
+
+    // By package id: whether a def of the package has been seen.
+    private boolean[] packagesSeen;
+
+    // Deferred deps, as linked lists by symbol id of the defs that use the
+    // symbol, most recent first: deferredHeads[symbol] is the first entry,
+    // or -1.
+    private int[] deferredHeads;
+    private int[] deferredDefs;
+    private int[] deferredNext;
+    private int deferredCount;
+
+    // Confirmed problems. Violations are stored as (def, dep) pairs of
+    // symbol ids, in the order confirmed.
+    private List<String> missing;
+    private int[] violations;
+    private int violationCount;
+
+    public PipelinedValidator(DependencyRules rules, boolean allViolations) {
+        this.rules = rules;
+        this.allViolations = allViolations;
+        this.symbols = new SymbolTable();
+        this.defGroups = new int[1024];
+        this.packageGroups = new int[64];
+        this.packagesSeen = new boolean[64];
+        this.deferredHeads = new int[1024];
+        this.deferredDefs = new int[256];
+        this.deferredNext = new int[256];
+        this.missing = new ArrayList<String>();
+        this.violations = new int[64];
+
+        Arrays.fill(defGroups, NOT_DEFINED);
+        Arrays.fill(deferredHeads, -1);
+    }
+
+    /**
+     * Validates a catalog.xml. The stream is read by a second thread and is
+     * not closed; in fail-fast mode that thread may still be reading it,
+     * until its next batch, when this returns. Throws the parse error, if
+     * the catalog cannot be read before a problem is found; errors other
+     * than exceptions are rethrown as they are.
+     */
+    public ValidationResult validate(final InputStream catalogXml)
+            throws Exception {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(
+                QUEUE_CAPACITY);
+        Thread producer = new Thread("swcv catalog parser") {
+            public void run() {
+                produce(catalogXml, queue);
+            }
+        };
+
+        producer.setDaemon(true);
+        producer.start();
+
+        try {
+            while (!isDone()) {
+                Object item = queue.take();
+
+                if (item instanceof Error) {
+                    throw (Error) item;
+                } else if (item instanceof Exception) {
+                    throw (Exception) item;
+                } else if (item instanceof Throwable) {
+                    throw new Exception((Throwable) item);
+                } else if (item == END) {
+                    break;
+                }
+
+                for (String[] script : (String[][]) item) {
+                    check(script);
+
+                    if (isDone()) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            // Cancels the parse if a problem ended the run, or stops a
+            // producer waiting for queue space if the check failed.
+            producer.interrupt();
+        }
+
+        return createResult();
+    }
+
+    /**
+     * Parses the catalog into queue, in batches of scripts (a def id and
+     * dep ids), followed by END or by the throwable that stopped the parse.
+     * Nothing more is queued once the consumer has interrupted the thread.
+     */
+    private static void produce(InputStream catalogXml,
+            final BlockingQueue<Object> queue) {
+        final List<String[]> batch = new ArrayList<String[]>(BATCH_SIZE);
+        Object last = END;
+
+        try {
+            new CatalogParser(new CatalogHandler() {
+                public void script(String name, long mod, String defId,
+                        List<String> depIds) throws Exception {
+                    String[] script = new String[depIds.size() + 1];
+
+                    script[0] = defId;
+
+                    for (int i = 0; i < depIds.size(); i++) {
+                        script[i + 1] = depIds.get(i);
+                    }
+
+                    batch.add(script);
+
+                    if (batch.size() == BATCH_SIZE) {
+                        queue.put(batch.toArray(new String[batch.size()][]));
+                        batch.clear();
+                    }
+                }
+            }).parse(catalogXml);
+
+            queue.put(batch.toArray(new String[batch.size()][]));
+        } catch (InterruptedException e) {
+            // cancelled
+            last = null;
+        } catch (Throwable t) {
+            last = t;
+        } finally {
+            // The consumer waits for a last item, whatever stopped the
+            // parse.
+            if (last != null && !Thread.currentThread().isInterrupted()) {
+                try {
+                    queue.put(last);
+                } catch (InterruptedException e) {
+                    // cancelled
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether fail-fast mode has found its problem.
+     */
+    private boolean isDone() {
+        return !allViolations && (!missing.isEmpty() || violationCount > 0);
+    }
+
+    /**
+     * Checks a script.
+     */
+    private void check(String[] script) {
+        Symbol def = symbols.intern(script[0]);
+        int group = getGroup(def);
+        int id = def.getId();
+
+        ensureSymbol(symbols.getSymbolCount());
+
+        // Packages the rules do not cover are recorded once, in the order
+        // first seen.
+        if (!packagesSeen[def.getPackageId()]) {
+            packagesSeen[def.getPackageId()] = true;
+
+            if (group == -1) {
+                missing.add(def.getPackageName());
+            }
+        }
+
+        // Deps that were waiting for this def are now confirmed.
+        if (defGroups[id] == NOT_DEFINED) {
+            defGroups[id] = group;
+
+            for (int i = deferredHeads[id]; i != -1; i = deferredNext[i]) {
+                addViolation(deferredDefs[i], id);
+            }
+
+            deferredHeads[id] = -1;
+        }
+
+        for (int i = 1; i < script.length; i++) {
+            Symbol dep = symbols.intern(script[i]);
+
+            ensureSymbol(symbols.getSymbolCount());
+
+            if (!DependencyValidator.isViolation(rules, group, getGroup(dep))) {
+                continue;
+            }
+
+            if (defGroups[dep.getId()] != NOT_DEFINED) {
+                addViolation(id, dep.getId());
+            } else {
+                defer(id, dep.getId());
+            }
+        }
+    }
+
+    /**
+     * Returns the group of a symbol's package, looking it up in the rules
+     * the first time the package is seen.
+     */
+    private int getGroup(Symbol symbol) {
+        int p = symbol.getPackageId();
+
+        if (p >= packageGroups.length) {
+            int size = Math.max(p + 1, packageGroups.length * 2);
+
+            packageGroups = Arrays.copyOf(packageGroups, size);
+            packagesSeen = Arrays.copyOf(packagesSeen, size);
+        }
+
+        if (packageGroups[p] == 0) {
+            packageGroups[p] = rules.getGroup(symbol.getPackageName()) + 1;
+        }
+
+        return packageGroups[p] - 1;
+    }
+
+    private void ensureSymbol(int n) {
+        if (n > defGroups.length) {
+            int size = Math.max(n, defGroups.length * 2);
+            int old = defGroups.length;
+
+            defGroups = Arrays.copyOf(defGroups, size);
+            deferredHeads = Arrays.copyOf(deferredHeads, size);
+            Arrays.fill(defGroups, old, size, NOT_DEFINED);
+            Arrays.fill(deferredHeads, old, size, -1);
+        }
+    }
+
+    private void defer(int def, int dep) {
+        if (deferredCount == deferredDefs.length) {
+            int size = deferredCount * 2;
+
+            deferredDefs = Arrays.copyOf(deferredDefs, size);
+            deferredNext = Arrays.copyOf(deferredNext, size);
+        }
+
+        deferredDefs[deferredCount] = def;
+        deferredNext[deferredCount] = deferredHeads[dep];
+        deferredHeads[dep] = deferredCount++;
+    }
+
+    private void addViolation(int def, int dep) {
+        if (2 * violationCount + 2 > violations.length) {
+            violations = Arrays.copyOf(violations, violations.length * 2);
+        }
+
+        violations[2 * violationCount] = def;
+        violations[2 * violationCount + 1] = dep;
+        violationCount++;
+    }
+
+    private ValidationResult createResult() {
+        List<Violation> result = new ArrayList<Violation>();
+
+        if (!allViolations) {
+            // The problem that ended the run, if any: a script's package is
+            // checked before its deps, so a missing package comes first.
+            if (!missing.isEmpty()) {
+                return new ValidationResult(missing, result, false);
+            } else if (violationCount == 0) {
+                return new ValidationResult(missing, result, true);
+            }
+
+            List<Symbol> classes = new ArrayList<Symbol>();
+
+            for (int i = 0; i < violationCount; i++) {
+                Symbol cls = getDef(i);
+
+                if (isSame(0, i) && !classes.contains(cls)) {
+                    classes.add(cls);
+                }
+            }
+
+            Collections.sort(classes, NAME_ORDER);
+            result.add(createViolation(0, classes));
+            return new ValidationResult(missing, result, false);
+        }
+
+        Collections.sort(missing);
+
+        // Group by package, then symbol, as DependencyValidator does.
+        Integer[] order = new Integer[violationCount];
+
+        for (int i = 0; i < violationCount; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = getDef(a.intValue()).getPackageName().compareTo(
+                        getDef(b.intValue()).getPackageName());
+
+                if (c == 0) {
+                    c = getDep(a.intValue()).toString().compareTo(
+                            getDep(b.intValue()).toString());
+                }
+
+                return c;
+            }
+        });
+
+        for (int i = 0; i < order.length;) {
+            int first = order[i].intValue();
+            List<Symbol> classes = new ArrayList<Symbol>();
+            int j = i;
+
+            while (j < order.length && isSame(first, order[j].intValue())) {
+                Symbol cls = getDef(order[j++].intValue());
+
+                if (!classes.contains(cls)) {
+                    classes.add(cls);
+                }
+            }
+
+            Collections.sort(classes, NAME_ORDER);
+            result.add(createViolation(first, classes));
+            i = j;
+        }
+
+        return new ValidationResult(missing, result, true);
+    }
+
+    private Symbol getDef(int violation) {
+        return symbols.getSymbol(violations[2 * violation]);
+    }
+
+    private Symbol getDep(int violation) {
+        return symbols.getSymbol(violations[2 * violation + 1]);
+    }
+
+    /**
+     * Returns whether two violations are of the same package and symbol.
+     */
+    private boolean isSame(int a, int b) {
+        return getDef(a).getPackageId() == getDef(b).getPackageId()
+                && getDep(a) == getDep(b);
+    }
+
+    private Violation createViolation(int violation, List<Symbol> classes) {
+        return new Violation(getDef(violation).getPackageName(),
+                getDep(violation), classes);
+    }
+}
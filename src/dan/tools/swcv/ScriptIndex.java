@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A reverse index of a Swc's scripts: for each symbol, the scripts that
+ * list it as a dep.
+ * 
+ * The index is held in compressed sparse row form, like ScriptTable: the
+ * scripts that use symbol s are getUser(i) for getUsersStart(s) <= i <
+ * getUsersEnd(s), in catalog order. It is only built when a validation
+ * fails, to name the classes behind each violation and to find dependency
+ * chains (see findChains). The index is never modified after it is built.
+ */
+class ScriptIndex {
+    private static final Comparator<Symbol> NAME_ORDER = new Comparator<Symbol>() {
+        public int compare(Symbol a, Symbol b) {
+            return a.toString().compareTo(b.toString());
+        }
+    };
+
+    private DependencyGraph graph;
+    private ScriptTable scripts;
+    private int[] usersOffsets;
+    private int[] users;
+
+    public ScriptIndex(Swc swc) {
+        this.graph = swc.getDependencyGraph();
+        this.scripts = swc.getScriptTable();
+
+        int n = graph.getSymbolTable().getSymbolCount();
+        int depCount = scripts.getDepsStart(scripts.getScriptCount());
+
+        usersOffsets = new int[n + 1];
+        users = new int[depCount];
+
+        for (int i = 0; i < depCount; i++) {
+            usersOffsets[scripts.getDep(i) + 1]++;
+        }
+
+        for (int s = 0; s < n; s++) {
+            usersOffsets[s + 1] += usersOffsets[s];
+        }
+
+        int[] next = Arrays.copyOf(usersOffsets, n);
+
+        for (int script = 0; script < scripts.getScriptCount(); script++) {
+            for (int i = scripts.getDepsStart(script); i < scripts
+                    .getDepsEnd(script); i++) {
+                users[next[scripts.getDep(i)]++] = script;
+            }
+        }
+    }
+
+    public int getUsersStart(int symbol) {
+        return usersOffsets[symbol];
+    }
+
+    public int getUsersEnd(int symbol) {
+        return usersOffsets[symbol + 1];
+    }
+
+    public int getUser(int i) {
+        return users[i];
+    }
+
+    /**
+     * Returns the classes (script defs) of graph package p that use a
+     * symbol, in name order.
+     */
+    public List<Symbol> findClasses(int p, int symbol) {
+        SymbolTable symbols = graph.getSymbolTable();
+        List<Symbol> classes = new ArrayList<Symbol>();
+        int last = -1;
+
+        for (int i = getUsersStart(symbol); i < getUsersEnd(symbol); i++) {
+            int def = scripts.getDef(users[i]);
+
+            // A script may list the same dep more than once.
+            if (def != last && graph.getOwner(def) == p) {
+                classes.add(symbols.getSymbol(def));
+                last = def;
+            }
+        }
+
+        Collections.sort(classes, NAME_ORDER);
+        return classes;
+    }
+
+    /**
+     * Finds the shortest dependency chain from every symbol to graph
+     * package p, with one breadth first search backwards from the exports
+     * of p over the index. Returns, for each symbol, the next symbol of its
+     * chain (a symbol it depends on), the symbol itself for the exports of
+     * p, or -1 if no chain leads to p. See getChain.
+     */
+    public int[] findChains(int p) {
+        int n = graph.getSymbolTable().getSymbolCount();
+        int[] next = new int[n];
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+
+        Arrays.fill(next, -1);
+
+        for (int i = graph.getExportsStart(p); i < graph
+                .getExportsEnd(p); i++) {
+            int def = graph.getExport(i);
+
+            if (next[def] == -1) {
+                next[def] = def;
+                queue[tail++] = def;
+            }
+        }
+
+        while (head < tail) {
+            int symbol = queue[head++];
+            int end = getUsersEnd(symbol);
+
+            for (int i = getUsersStart(symbol); i < end; i++) {
+                int def = scripts.getDef(users[i]);
+
+                if (next[def] == -1) {
+                    next[def] = symbol;
+                    queue[tail++] = def;
+                }
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Returns the chain from symbol to the package that chains was found
+     * for (see findChains), starting with symbol itself, or null if there
+     * is none.
+     */
+    public List<Symbol> getChain(int[] chains, int symbol) {
+        if (chains[symbol] == -1) {
+            return null;
+        }
+
+        SymbolTable symbols = graph.getSymbolTable();
+        List<Symbol> chain = new ArrayList<Symbol>();
+
+        chain.add(symbols.getSymbol(symbol));
+
+        while (chains[symbol] != symbol) {
+            symbol = chains[symbol];
+            chain.add(symbols.getSymbol(symbol));
+        }
+
+        return chain;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.Arrays;
+
+/**
+ * The scripts of a SWC, in catalog order.
+ * 
+ * Each script is stored as the symbol id of its def and the symbol ids of
+ * its deps (see SymbolTable), in compressed sparse row form: the deps of
+ * script i are getDep(j) for getDepsStart(i) <= j < getDepsEnd(i).
+ * 
+ * A script also keeps what the catalog says about it: a hash of its name
+ * (see IncrementalValidator) and its mod, the modification time of its
+ * source.
+ */
+class ScriptTable {
+    private int count;
+    private int[] defs;
+    private int[] depsOffsets;
+    private int[] deps;
+    private long[] names;
+    private long[] mods;
+
+    public ScriptTable() {
+        defs = new int[64];
+        depsOffsets = new int[65];
+        deps = new int[256];
+        names = new long[64];
+        mods = new long[64];
+    }
+
+    /**
+     * Returns the 64 bit hash of a script name stored by add, 0 for null.
+     * FNV-1a, followed by a final mix.
+     */
+    public static long hashName(String name) {
+        if (name == null) {
+            return 0;
+        }
+
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    public void add(int def, int[] depIds, int depCount, long name, long mod) {
+        if (count == defs.length) {
+            defs = Arrays.copyOf(defs, count * 2);
+            depsOffsets = Arrays.copyOf(depsOffsets, count * 2 + 1);
+            names = Arrays.copyOf(names, count * 2);
+            mods = Arrays.copyOf(mods, count * 2);
+        }
+
+        int start = depsOffsets[count];
+
+        if (start + depCount > deps.length) {
+            deps = Arrays.copyOf(deps, Math.max(deps.length * 2, start
+                    + depCount));
+        }
+
+        System.arraycopy(depIds, 0, deps, start, depCount);
+        defs[count] = def;
+        names[count] = name;
+        mods[count] = mod;
+        depsOffsets[count + 1] = start + depCount;
+        count++;
+    }
+
+    public int getScriptCount() {
+        return count;
+    }
+
+    public int getDef(int script) {
+        return defs[script];
+    }
+
+    public int getDepsStart(int script) {
+        return depsOffsets[script];
+    }
+
+    public int getDepsEnd(int script) {
+        return depsOffsets[script + 1];
+    }
+
+    public int getDep(int i) {
+        return deps[i];
+    }
+
+    /**
+     * Returns the hash of the script's name (see hashName).
+     */
+    public long getName(int script) {
+        return names[script];
+    }
+
+    /**
+     * Returns the script's mod, or -1 if the catalog did not give one.
+     */
+    public long getMod(int script) {
+        return mods[script];
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Phase timings and counters of one swcv run (--stats, --stats-json).
+ * 
+ * A phase records its wall time and, where the JVM supports it
+ * (com.sun.management.ThreadMXBean), the bytes allocated by the current
+ * thread. Phases are started with start(); starting a phase ends the
+ * previous one. Sub-phases, such as the time spent inflating while the
+ * catalog is parsed, are named "phase.part" and only record wall time;
+ * their time is included in their phase.
+ */
+class Stats {
+    private static final Object threadBean = ManagementFactory
+            .getThreadMXBean();
+    private static final Method allocatedBytesMethod = findAllocatedBytesMethod();
+
+    private LinkedHashMap<String, long[]> phases;
+    private LinkedHashMap<String, Long> counters;
+    private String phase;
+    private long phaseStart;
+    private long phaseBytes;
+
+    public Stats() {
+        phases = new LinkedHashMap<String, long[]>();
+        counters = new LinkedHashMap<String, Long>();
+    }
+
+    /**
+     * Ends the current phase, if any, and starts timing the named phase.
+     */
+    public void start(String name) {
+        stop();
+        phase = name;
+        phaseBytes = allocatedBytes();
+
+        // Register the phase now so that it is listed before its
+        // sub-phases.
+        if (!phases.containsKey(name)) {
+            phases.put(name, new long[] { 0, (phaseBytes < 0) ? -1 : 0 });
+        }
+
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Ends the current phase.
+     */
+    public void stop() {
+        if (phase == null) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - phaseStart;
+        long bytes = allocatedBytes();
+
+        add(phase, elapsed, (bytes < 0 || phaseBytes < 0) ? -1 : bytes
+                - phaseBytes);
+        phase = null;
+    }
+
+    /**
+     * Adds wall time to a sub-phase.
+     */
+    public void addTime(String name, long nanos) {
+        add(name, nanos, -1);
+    }
+
+    public void setCounter(String name, long value) {
+        counters.put(name, Long.valueOf(value));
+    }
+
+    /**
+     * Records the size of a loaded SWC.
+     */
+    public void count(Swc swc) {
+        DependencyGraph graph = swc.getDependencyGraph();
+        ScriptTable scripts = swc.getScriptTable();
+        long internal = 0;
+        long external = 0;
+
+        for (int p = 0; p < graph.getPackageCount(); p++) {
+            for (int i = graph.getDependenciesStart(p); i < graph
+                    .getDependenciesEnd(p); i++) {
+                if (graph.isInternal(graph.getDependency(i))) {
+                    internal++;
+                } else {
+                    external++;
+                }
+            }
+        }
+
+        setCounter("scripts", scripts.getScriptCount());
+        setCounter("defs", graph.getExportsStart(graph.getPackageCount()));
+        setCounter("deps", scripts.getDepsStart(scripts.getScriptCount()));
+        setCounter("symbols", graph.getSymbolTable().getSymbolCount());
+        setCounter("packages", graph.getPackageCount());
+        setCounter("internalEdges", internal);
+        setCounter("externalEdges", external);
+        setCounter("packageEdges", graph.getEdgesStart(graph.getPackageCount()));
+    }
+
+    /**
+     * Wraps a stream so that time spent reading it is added to a sub-phase.
+     */
+    public InputStream time(InputStream in, final String name) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                long start = System.nanoTime();
+
+                try {
+                    return super.read();
+                } finally {
+                    addTime(name, System.nanoTime() - start);
+                }
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+
+                try {
+                    return super.read(b, off, len);
+                } finally {
+                    addTime(name, System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    public void print(PrintStream out) {
+        stop();
+
+        out.println("Phase                       Time (ms)   Allocated (KB)");
+
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            String name = e.getKey();
+            long[] v = e.getValue();
+            int dot = name.indexOf('.');
+
+            if (dot != -1) {
+                name = "  " + name.substring(dot + 1);
+            }
+
+            out.println(pad(name, 28)
+                    + pad(String.format("%.3f", v[0] / 1e6), 12)
+                    + ((v[1] < 0) ? "-" : String.valueOf(v[1] / 1024)));
+        }
+
+        out.println("Counter                     Value");
+
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            out.println(pad(e.getKey(), 28) + e.getValue());
+        }
+    }
+
+    public void printJson(PrintStream out) {
+        String sep = "";
+
+        stop();
+
+        out.println("{");
+        out.println("  \"phases\": {");
+
+        for (Map.Entry<String, long[]> e : phases.entrySet()) {
+            long[] v = e.getValue();
+
+            out.print(sep);
+            out.print("    \"" + e.getKey() + "\": { \"nanos\": " + v[0]);
+
+            if (v[1] >= 0) {
+                out.print(", \"allocatedBytes\": " + v[1]);
+            }
+
+            out.print(" }");
+            sep = ",\n";
+        }
+
+        out.println();
+        out.println("  },");
+        out.println("  \"counters\": {");
+        sep = "";
+
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            out.print(sep);
+            out.print("    \"" + e.getKey() + "\": " + e.getValue());
+            sep = ",\n";
+        }
+
+        out.println();
+        out.println("  }");
+        out.println("}");
+    }
+
+    private void add(String name, long nanos, long bytes) {
+        long[] v = phases.get(name);
+
+        if (v == null) {
+            v = new long[] { 0, bytes };
+            phases.put(name, v);
+        } else if (bytes >= 0) {
+            v[1] += bytes;
+        }
+
+        v[0] += nanos;
+    }
+
+    private static String pad(String s, int width) {
+        StringBuilder sb = new StringBuilder(s);
+
+        while (sb.length() < width) {
+            sb.append(' ');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if
+     * the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        if (allocatedBytesMethod == null) {
+            return -1;
+        }
+
+        try {
+            return ((Long) allocatedBytesMethod.invoke(threadBean, Long
+                    .valueOf(Thread.currentThread().getId()))).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static Method findAllocatedBytesMethod() {
+        try {
+            Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+
+            if (c.isInstance(threadBean)) {
+                return c.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (Exception e) {
+            // not available on this JVM
+        }
+
+        return null;
+    }
+}
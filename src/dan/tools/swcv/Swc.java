@@ -25,16 +25,7 @@ package dan.tools.swcv;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Hashtable;
-import java.util.Vector;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.List;
 
 /**
  * Represents an Actionscript 3 SWC library.
@@ -42,201 +33,223 @@ import org.w3c.dom.NodeList;
  * This class manages extracting exports and dependency information
  * from a SWC's catalog.xml file. The export and dependencies are stored
  * in this class, grouped by package.
+ * 
+ * The catalog is streamed (see CatalogParser), so the XML document itself
+ * is never held in memory.
  */
 public class Swc {
     private Hashtable<String, Package> pacakges;
+    private SymbolTable symbols;
+    private ScriptTable scripts;
+    private DependencyGraph graph;
+    private int[] depBuffer;
+    private Stats stats;
 
     public Swc(String swcFile) throws Exception {
-        ZipFile zf = null;
-        ZipEntry ze;
+        this(swcFile, null);
+    }
 
-        pacakges = new Hashtable<String, Package>();
+    /**
+     * Reads a SWC, or just its catalog.xml, from a stream. The stream is
+     * not closed.
+     */
+    public Swc(InputStream inputStream) throws Exception {
+        this(inputStream, null);
+    }
 
-        try {
-            zf = new ZipFile(new File(swcFile));
-            ze = zf.getEntry("catalog.xml");
+    /**
+     * Reads a SWC from a stream, recording phase times in stats (which may
+     * be null).
+     */
+    Swc(InputStream inputStream, Stats stats) throws Exception {
+        this.stats = stats;
+        clear();
+
+        startPhase("open");
+        processCatalogXml(SwcArchive.openCatalog(inputStream));
+        buildGraph();
+    }
 
-            if (ze == null) {
-                throw new Exception(swcFile
-                        + " does not contain a catalog.xml.");
-            }
+    Swc(String swcFile, CatalogCache cache) throws Exception {
+        this(swcFile, cache, null);
+    }
 
-            processCatalogXml(zf.getInputStream(ze));
-        } finally {
-            try {
-                zf.close();
-            } catch (Exception e) {
-                // ignore
+    /**
+     * Loads a SWC, using the model stored in cache when the SWC has not
+     * changed since it was stored. cache and stats may be null.
+     */
+    Swc(String swcFile, CatalogCache cache, Stats stats) throws Exception {
+        this.stats = stats;
+        clear();
+
+        if (cache != null) {
+            startPhase("cache load");
+        }
+
+        if (cache == null || !cache.load(swcFile, this)) {
+            // A failed cache load may have left a partial model behind.
+            clear();
+
+            readSwc(swcFile);
+
+            if (cache != null) {
+                startPhase("cache store");
+                cache.store(swcFile, this);
             }
         }
+
+        buildGraph();
     }
 
     public Iterable<Package> packagesIterator() {
         return pacakges.values();
     }
 
+    public int getPackageCount() {
+        return pacakges.size();
+    }
+
     public Package getPackage(String packageName) {
         return pacakges.get(packageName);
     }
 
-    private Node findChildElement(Node n, String childNodeName) {
-        if (n != null && n.hasChildNodes()) {
-            NodeList children = n.getChildNodes();
-
-            for (int i = 0; i < children.getLength(); i++) {
-                Node child = children.item(i);
+    SymbolTable getSymbolTable() {
+        return symbols;
+    }
 
-                if (child.getNodeType() == Node.ELEMENT_NODE
-                        && childNodeName.equals(child.getNodeName())) {
-                    return child;
-                }
-            }
-        }
+    ScriptTable getScriptTable() {
+        return scripts;
+    }
 
-        return null;
+    /**
+     * Returns the package dependency graph, built once the catalog has been
+     * loaded.
+     */
+    DependencyGraph getDependencyGraph() {
+        return graph;
     }
 
-    private void processCatalogXml(InputStream inputStream) throws Exception {
-        DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory
-                .newInstance();
-        DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-        Document doc = docBuilder.parse(inputStream);
+    /**
+     * Adds a script: its def is exported by the def's package and its deps
+     * become dependencies of that package. name (see ScriptTable.hashName)
+     * and mod identify the script in the catalog. Used while loading.
+     */
+    void addScript(Symbol def, int[] deps, int depCount, long name, long mod) {
+        Package pkg = addPackage(def.getPackageName());
 
-        Vector<Node> libraryNodes = getLibraryNodes(doc);
+        pkg.addExport(def);
 
-        if (libraryNodes.isEmpty()) {
-            throw new Exception("Cannot find library information in swc.");
+        for (int i = 0; i < depCount; i++) {
+            pkg.addDependency(symbols.getSymbol(deps[i]));
         }
 
-        for (Node library : libraryNodes) {
-            processLibraryNode(library);
-        }
+        scripts.add(def.getId(), deps, depCount, name, mod);
     }
 
-    private void processLibraryNode(Node library) throws Exception {
-        if (!library.hasChildNodes()) {
-            return;
+    /**
+     * Returns the named package, creating it if the SWC does not have it
+     * yet. Used while loading.
+     */
+    private Package addPackage(String packageName) {
+        Package pkg = pacakges.get(packageName);
+
+        if (pkg == null) {
+            pkg = new Package(packageName);
+            pacakges.put(packageName, pkg);
         }
 
-        NodeList children = library.getChildNodes();
+        return pkg;
+    }
+
+    private void clear() {
+        pacakges = new Hashtable<String, Package>();
+        symbols = new SymbolTable();
+        scripts = new ScriptTable();
+        depBuffer = new int[16];
+    }
 
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
+    private void buildGraph() {
+        startPhase("graph");
+        graph = DependencyGraph.build(this);
+        depBuffer = null;
 
-            if (child.getNodeType() == Node.ELEMENT_NODE
-                    && "script".equals(child.getNodeName())) {
-                processScriptNode(child);
-            }
+        if (stats != null) {
+            stats.stop();
+            stats = null;
         }
     }
 
-    private void processScriptNode(Node script) throws Exception {
-        if (!script.hasChildNodes()) {
-            return;
+    private void startPhase(String name) {
+        if (stats != null) {
+            stats.start(name);
         }
+    }
 
-        NodeList children = script.getChildNodes();
-        Symbol def = null;
-
-        for (int j = 0; j < children.getLength(); j++) {
-            Node child = children.item(j);
+    private void readSwc(String swcFile) throws Exception {
+        startPhase("open");
 
-            if (child.getNodeType() == Node.ELEMENT_NODE
-                    && "def".equals(child.getNodeName())) {
-                String attr = getAttribute(child, "id");
+        InputStream in = SwcArchive.openCatalog(new File(swcFile));
 
-                if (attr != null) {
-                    def = createSymbol(attr);
-                } else {
-                    throw new Exception("No id attribute for def: "
-                            + child.getNodeName());
-                }
-                break;
+        try {
+            processCatalogXml(in);
+        } finally {
+            try {
+                in.close();
+            } catch (Exception e) {
+                // ignore
             }
         }
+    }
 
-        if (def == null) {
-            throw new Exception("No def for script: " + script.getNodeName());
-        }
-
-        String packageName = def.getPackageName();
-        Package pkg = pacakges.get(packageName);
+    private void processCatalogXml(InputStream inputStream) throws Exception {
+        CatalogParser parser;
 
-        if (pkg == null) {
-            pkg = new Package(def.getPackageName());
-            pacakges.put(packageName, pkg);
-        }
+        if (stats == null) {
+            parser = new CatalogParser(new CatalogHandler() {
+                public void script(String name, long mod, String defId,
+                        List<String> depIds) throws Exception {
+                    processScript(name, mod, defId, depIds);
+                }
+            });
+        } else {
+            // Split the parse time into inflating the catalog, building the
+            // model and (the rest) XML parsing.
+            final Stats s = stats;
 
-        pkg.addExport(def);
+            parser = new CatalogParser(new CatalogHandler() {
+                public void script(String name, long mod, String defId,
+                        List<String> depIds) throws Exception {
+                    long start = System.nanoTime();
 
-        for (int j = 0; j < children.getLength(); j++) {
-            Node child = children.item(j);
-            if (child.getNodeType() == Node.ELEMENT_NODE
-                    && "dep".equals(child.getNodeName())) {
-                String attr = getAttribute(child, "id");
-
-                if (attr != null) {
-                    pkg.addDependency(createSymbol(attr));
-                } else {
-                    throw new Exception("No id attribute for def: "
-                            + child.getNodeName());
+                    processScript(name, mod, defId, depIds);
+                    s.addTime("parse.model", System.nanoTime() - start);
                 }
-            }
-        }
-    }
+            });
 
-    private Symbol createSymbol(String id) {
-        String s[] = id.split(":");
-        String name;
-        String pkg;
-
-        if (s.length == 1) {
-            name = s[0];
-            pkg = "default";
-        } else if (s.length == 2) {
-            pkg = s[0];
-            name = s[1];
-        } else {
-            // error?
-            pkg = "";
-            name = "";
+            inputStream = stats.time(inputStream, "parse.inflate");
+            stats.start("parse");
         }
 
-        return new Symbol(name, pkg);
+        parser.parse(inputStream);
     }
 
-    private Vector<Node> getLibraryNodes(Document doc) {
-        Node swc = findChildElement(doc, "swc");
-        Node libraries = findChildElement(swc, "libraries");
-        Vector<Node> nodes = new Vector<Node>();
+    private void processScript(String name, long mod, String defId,
+            List<String> depIds) {
+        Symbol def = createSymbol(defId);
 
-        if (libraries == null || !libraries.hasChildNodes()) {
-            return nodes;
+        if (depIds.size() > depBuffer.length) {
+            depBuffer = new int[Math.max(depIds.size(), depBuffer.length * 2)];
         }
 
-        NodeList children = libraries.getChildNodes();
-
-        for (int i = 0; i < children.getLength(); i++) {
-            Node child = children.item(i);
-
-            if (child.getNodeType() == Node.ELEMENT_NODE
-                    && "library".equals(child.getNodeName())) {
-                nodes.add(child);
-            }
+        for (int i = 0; i < depIds.size(); i++) {
+            depBuffer[i] = createSymbol(depIds.get(i)).getId();
         }
 
-        return nodes;
+        addScript(def, depBuffer, depIds.size(), ScriptTable.hashName(name),
+                mod);
     }
 
-    private String getAttribute(Node n, String attributeName) {
-        if (n.hasAttributes()) {
-            Node attr = n.getAttributes().getNamedItem(attributeName);
-
-            if (attr != null) {
-                return attr.getNodeValue();
-            }
-        }
-
-        return null;
+    private Symbol createSymbol(String id) {
+        return symbols.intern(id);
     }
 }
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Finds and opens the catalog.xml (or another entry, ex. library.swf) of a
+ * SWC.
+ * 
+ * A SWC is a zip archive, but only one of its entries is needed. Rather
+ * than have ZipFile read and index the whole central directory, the SWC is
+ * memory mapped and the central directory is scanned for the entry; only
+ * that entry's data is mapped and inflated, as a stream, into the parser.
+ * Archives this scan does not handle (ex. zip64) fall back to ZipFile.
+ * 
+ * A SWC can also be read from a stream, ex. stdin. The stream may hold the
+ * zipped SWC or a raw catalog.xml.
+ */
+class SwcArchive {
+    static final String CATALOG = "catalog.xml";
+    static final String LIBRARY = "library.swf";
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_HEADER = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private SwcArchive() {
+    }
+
+    /**
+     * Opens the catalog.xml of a SWC file.
+     */
+    public static InputStream openCatalog(File swcFile) throws Exception {
+        return openEntry(swcFile, CATALOG);
+    }
+
+    /**
+     * Opens an entry of a SWC file. A stored (uncompressed) entry is
+     * returned as a ByteBufferInputStream over the mapped data.
+     */
+    public static InputStream openEntry(File swcFile, String entryName)
+            throws Exception {
+        RandomAccessFile file = new RandomAccessFile(swcFile, "r");
+        MappedEntry entry;
+
+        // The mappings stay valid after the file is closed.
+        try {
+            entry = mapEntry(file.getChannel(), entryName);
+        } finally {
+            file.close();
+        }
+
+        if (entry == null) {
+            return openEntryWithZipFile(swcFile, entryName);
+        } else if (entry.data == null) {
+            throw new Exception(swcFile + " does not contain a " + entryName
+                    + ".");
+        }
+
+        InputStream in = new ByteBufferInputStream(entry.data);
+
+        if (entry.method == ZipEntry.STORED) {
+            return in;
+        } else if (entry.method == ZipEntry.DEFLATED) {
+            return new EntryInflaterInputStream(in);
+        } else {
+            throw new Exception(swcFile
+                    + ": unsupported compression method for " + entryName
+                    + ".");
+        }
+    }
+
+    /**
+     * Opens the catalog.xml in a stream holding either a zipped SWC or a
+     * raw catalog.xml. The stream is read up to the end of the catalog.
+     */
+    public static InputStream openCatalog(InputStream inputStream)
+            throws Exception {
+        BufferedInputStream in = new BufferedInputStream(inputStream);
+        byte[] magic = new byte[4];
+        int n = 0;
+
+        in.mark(magic.length);
+
+        while (n < magic.length) {
+            int r = in.read(magic, n, magic.length - n);
+
+            if (r == -1) {
+                break;
+            }
+
+            n += r;
+        }
+
+        in.reset();
+
+        if (n < magic.length
+                || ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN)
+                        .getInt() != LOCAL_HEADER) {
+            return in;
+        }
+
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+
+        while ((entry = zip.getNextEntry()) != null) {
+            if (CATALOG.equals(entry.getName())) {
+                return zip;
+            }
+        }
+
+        throw new Exception("SWC stream does not contain a catalog.xml.");
+    }
+
+    /**
+     * Locates and maps an entry of a SWC. Returns an entry without data if
+     * the SWC has no such entry, or null if the archive cannot be read this
+     * way.
+     */
+    private static MappedEntry mapEntry(FileChannel channel, String entryName)
+            throws Exception {
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, END_HEADER_SIZE
+                + MAX_COMMENT_SIZE);
+
+        if (tailSize < END_HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer tail = map(channel, size - tailSize, tailSize);
+        int end = -1;
+
+        for (int i = tailSize - END_HEADER_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER) {
+                end = i;
+                break;
+            }
+        }
+
+        if (end == -1) {
+            return null;
+        }
+
+        int entries = tail.getShort(end + 10) & 0xffff;
+        long dirSize = tail.getInt(end + 12) & 0xffffffffL;
+        long dirOffset = tail.getInt(end + 16) & 0xffffffffL;
+
+        if (entries == 0xffff || dirOffset == 0xffffffffL
+                || dirOffset + dirSize > size) {
+            // zip64 or damaged
+            return null;
+        }
+
+        ByteBuffer dir = map(channel, dirOffset, (int) dirSize);
+        byte[] name = entryName.getBytes("UTF-8");
+        int pos = 0;
+
+        for (int i = 0; i < entries; i++) {
+            if (pos + 46 > dir.limit() || dir.getInt(pos) != CENTRAL_HEADER) {
+                return null;
+            }
+
+            int method = dir.getShort(pos + 10) & 0xffff;
+            long compressedSize = dir.getInt(pos + 20) & 0xffffffffL;
+            int nameLength = dir.getShort(pos + 28) & 0xffff;
+            int extraLength = dir.getShort(pos + 30) & 0xffff;
+            int commentLength = dir.getShort(pos + 32) & 0xffff;
+            long localOffset = dir.getInt(pos + 42) & 0xffffffffL;
+
+            if (matches(dir, pos + 46, nameLength, name)) {
+                return mapEntry(channel, localOffset, compressedSize, method);
+            }
+
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+
+        return new MappedEntry(0, null);
+    }
+
+    private static MappedEntry mapEntry(FileChannel channel, long localOffset,
+            long compressedSize, int method) throws Exception {
+        if (compressedSize == 0xffffffffL || localOffset + 30 > channel.size()) {
+            return null;
+        }
+
+        ByteBuffer local = map(channel, localOffset, 30);
+
+        if (local.getInt(0) != LOCAL_HEADER) {
+            return null;
+        }
+
+        long dataOffset = localOffset + 30 + (local.getShort(26) & 0xffff)
+                + (local.getShort(28) & 0xffff);
+
+        if (dataOffset + compressedSize > channel.size()
+                || compressedSize > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        return new MappedEntry(method, map(channel, dataOffset,
+                (int) compressedSize));
+    }
+
+    private static boolean matches(ByteBuffer buf, int pos, int length,
+            byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buf.get(pos + i) != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, int size)
+            throws Exception {
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                size);
+
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static InputStream openEntryWithZipFile(File swcFile,
+            String entryName) throws Exception {
+        final ZipFile zf = new ZipFile(swcFile);
+        ZipEntry ze = zf.getEntry(entryName);
+
+        if (ze == null) {
+            zf.close();
+            throw new Exception(swcFile + " does not contain a " + entryName
+                    + ".");
+        }
+
+        return new FilterInputStream(zf.getInputStream(ze)) {
+            public void close() throws IOException {
+                zf.close();
+            }
+        };
+    }
+
+    private static class MappedEntry {
+        private int method;
+        private ByteBuffer data;
+
+        public MappedEntry(int method, ByteBuffer data) {
+            this.method = method;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads a (mapped) buffer without copying it to the heap first.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buf;
+
+        public ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /**
+         * Returns the next n bytes as a view of the buffer, without copying
+         * them, and skips them.
+         */
+        public ByteBuffer slice(int n) throws IOException {
+            if (n > buf.remaining()) {
+                throw new EOFException();
+            }
+
+            ByteBuffer slice = buf.slice();
+
+            slice.limit(n);
+            buf.position(buf.position() + n);
+            return slice;
+        }
+
+        public long skip(long n) {
+            n = Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + (int) n);
+            return n;
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buf.hasRemaining()) {
+                return -1;
+            }
+
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Inflates raw zip entry data. Like ZipFile, it feeds the inflater an
+     * extra dummy byte at the end of the data, which "nowrap" inflation can
+     * need, and releases the inflater on close.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean eof;
+
+        public EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+
+            len = in.read(buf, 0, buf.length);
+
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+
+            inf.setInput(buf, 0, len);
+        }
+
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+}
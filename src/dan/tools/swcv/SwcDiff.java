@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the dependencies of two versions of a SWC (--diff).
+ * 
+ * The package names of both graphs are merged into one sorted list, and the
+ * old graph's symbols are mapped into the new graph's symbol table (symbols
+ * only the old SWC has get ids after the new table's), so that an edge of
+ * either graph can be encoded as a long: the index of the package, then of
+ * the target package or symbol, 32 bits each. Each graph's package edges
+ * and symbol edges (a package and a symbol it depends on) are collapsed
+ * into sorted long arrays, and the arrays of the two graphs are compared
+ * with a linear merge. The cost is that of sorting the edges, O(E log E)
+ * for E edges, on primitive arrays; only the edges that differ are turned
+ * back into names.
+ */
+class SwcDiff {
+    private DependencyGraph oldGraph;
+    private DependencyGraph newGraph;
+
+    // The union of both graphs' package names, in sorted order.
+    private String[] packageNames;
+
+    // The ids of the symbols only the old graph has, by symbol id minus the
+    // new graph's symbol count.
+    private String[] oldSymbolIds;
+
+    // Graph package -> union package, per graph.
+    private int[] oldPackages;
+    private int[] newPackages;
+
+    private long[] addedPackageEdges;
+    private long[] removedPackageEdges;
+    private long[] addedSymbolEdges;
+    private long[] removedSymbolEdges;
+
+    public SwcDiff(Swc oldSwc, Swc newSwc) {
+        this.oldGraph = oldSwc.getDependencyGraph();
+        this.newGraph = newSwc.getDependencyGraph();
+
+        String[] oldNames = getPackageNames(oldGraph);
+        String[] newNames = getPackageNames(newGraph);
+
+        packageNames = union(oldNames, newNames);
+        oldPackages = map(oldNames, packageNames);
+        newPackages = map(newNames, packageNames);
+
+        long[] oldEdges = getPackageEdges(oldGraph, oldPackages);
+        long[] newEdges = getPackageEdges(newGraph, newPackages);
+
+        addedPackageEdges = subtract(newEdges, oldEdges);
+        removedPackageEdges = subtract(oldEdges, newEdges);
+
+        oldEdges = getSymbolEdges(oldGraph, oldPackages, mapOldSymbols());
+        newEdges = getSymbolEdges(newGraph, newPackages, null);
+
+        addedSymbolEdges = subtract(newEdges, oldEdges);
+        removedSymbolEdges = subtract(oldEdges, newEdges);
+    }
+
+    public boolean isEmpty() {
+        return addedPackageEdges.length == 0
+                && removedPackageEdges.length == 0
+                && addedSymbolEdges.length == 0
+                && removedSymbolEdges.length == 0;
+    }
+
+    /**
+     * Prints the added and removed edges, package edges first. Each package
+     * edge is followed by its witness, the first symbol of the target
+     * package that the source package uses.
+     */
+    public void print(PrintStream out) {
+        printPackageEdges("Package dependencies added:", addedPackageEdges,
+                newGraph, newPackages, out);
+        printPackageEdges("Package dependencies removed:",
+                removedPackageEdges, oldGraph, oldPackages, out);
+        printSymbolEdges("Symbol dependencies added:", addedSymbolEdges, out);
+        printSymbolEdges("Symbol dependencies removed:", removedSymbolEdges,
+                out);
+
+        out.println(addedPackageEdges.length
+                + " package dependency(ies) added, "
+                + removedPackageEdges.length + " removed; "
+                + addedSymbolEdges.length + " symbol dependency(ies) added, "
+                + removedSymbolEdges.length + " removed.");
+    }
+
+    private void printPackageEdges(String title, long[] edges,
+            DependencyGraph graph, int[] packages, PrintStream out) {
+        if (edges.length == 0) {
+            return;
+        }
+
+        out.println(title);
+
+        // packages is sorted, as both graphs number packages in name order,
+        // so it maps union packages back to the graph's.
+        for (long edge : edges) {
+            int p = Arrays.binarySearch(packages, getFrom(edge));
+            int q = Arrays.binarySearch(packages, getTo(edge));
+
+            out.println("\t" + packageNames[getFrom(edge)] + " -> "
+                    + packageNames[getTo(edge)] + " ("
+                    + getWitness(graph, p, q) + ")");
+        }
+    }
+
+    private void printSymbolEdges(String title, long[] edges, PrintStream out) {
+        if (edges.length == 0) {
+            return;
+        }
+
+        // The edges are in symbol id order within each package; print them
+        // in name order.
+        String[] lines = new String[edges.length];
+        SymbolTable symbols = newGraph.getSymbolTable();
+
+        for (int i = 0; i < edges.length; i++) {
+            int to = getTo(edges[i]);
+            String id = (to < symbols.getSymbolCount()) ? symbols.getSymbol(
+                    to).toString() : oldSymbolIds[to
+                    - symbols.getSymbolCount()];
+
+            lines[i] = packageNames[getFrom(edges[i])] + " -> " + id;
+        }
+
+        Arrays.sort(lines);
+        out.println(title);
+
+        for (String line : lines) {
+            out.println("\t" + line);
+        }
+    }
+
+    /**
+     * Maps the old graph's symbol ids to ids in the new graph's symbol
+     * table, numbering the symbols it does not have after the table's.
+     */
+    private int[] mapOldSymbols() {
+        SymbolTable oldSymbols = oldGraph.getSymbolTable();
+        SymbolTable newSymbols = newGraph.getSymbolTable();
+        int[] ids = new int[oldSymbols.getSymbolCount()];
+        List<String> oldOnly = new ArrayList<String>();
+
+        for (int i = 0; i < ids.length; i++) {
+            String id = oldSymbols.getSymbol(i).toString();
+            Symbol symbol = newSymbols.find(id);
+
+            if (symbol != null) {
+                ids[i] = symbol.getId();
+            } else {
+                ids[i] = newSymbols.getSymbolCount() + oldOnly.size();
+                oldOnly.add(id);
+            }
+        }
+
+        oldSymbolIds = oldOnly.toArray(new String[oldOnly.size()]);
+        return ids;
+    }
+
+    private static Symbol getWitness(DependencyGraph graph, int p, int q) {
+        for (int i = graph.getEdgesStart(p); i < graph.getEdgesEnd(p); i++) {
+            if (graph.getEdgeTarget(i) == q) {
+                return graph.getSymbolTable().getSymbol(
+                        graph.getDependency(graph.getEdgeWitness(i)));
+            }
+        }
+
+        return null;
+    }
+
+    private static String[] getPackageNames(DependencyGraph graph) {
+        String[] names = new String[graph.getPackageCount()];
+
+        for (int p = 0; p < names.length; p++) {
+            names[p] = graph.getPackageName(p);
+        }
+
+        return names;
+    }
+
+    /**
+     * Returns the package to package edges of a graph, without self edges,
+     * as sorted union package pairs.
+     */
+    private static long[] getPackageEdges(DependencyGraph graph,
+            int[] packages) {
+        int n = graph.getPackageCount();
+        long[] edges = new long[(n == 0) ? 0 : graph.getEdgesEnd(n - 1)];
+        int count = 0;
+
+        for (int p = 0; p < n; p++) {
+            for (int i = graph.getEdgesStart(p); i < graph
+                    .getEdgesEnd(p); i++) {
+                int q = graph.getEdgeTarget(i);
+
+                if (q != p) {
+                    edges[count++] = encode(packages[p], packages[q]);
+                }
+            }
+        }
+
+        edges = Arrays.copyOf(edges, count);
+        Arrays.sort(edges);
+        return edges;
+    }
+
+    /**
+     * Returns the package to symbol edges of a graph (its dependencies) as
+     * sorted union package and symbol pairs. symbols maps the graph's
+     * symbol ids, or is null to keep them.
+     */
+    private static long[] getSymbolEdges(DependencyGraph graph,
+            int[] packages, int[] symbols) {
+        int n = graph.getPackageCount();
+        long[] edges = new long[(n == 0) ? 0 : graph.getDependenciesEnd(n - 1)];
+        int count = 0;
+
+        for (int p = 0; p < n; p++) {
+            for (int i = graph.getDependenciesStart(p); i < graph
+                    .getDependenciesEnd(p); i++) {
+                int dep = graph.getDependency(i);
+
+                edges[count++] = encode(packages[p],
+                        (symbols != null) ? symbols[dep] : dep);
+            }
+        }
+
+        Arrays.sort(edges);
+        return edges;
+    }
+
+    /**
+     * Returns the elements of sorted array a that are not in sorted array
+     * b, by a linear merge. Neither array has duplicates.
+     */
+    static long[] subtract(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        int count = 0;
+        int j = 0;
+
+        for (int i = 0; i < a.length; i++) {
+            while (j < b.length && b[j] < a[i]) {
+                j++;
+            }
+
+            if (j == b.length || b[j] != a[i]) {
+                result[count++] = a[i];
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Merges two sorted arrays of distinct strings.
+     */
+    private static String[] union(String[] a, String[] b) {
+        String[] result = new String[a.length + b.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < a.length || j < b.length) {
+            int c = (i == a.length) ? 1 : (j == b.length) ? -1 : a[i]
+                    .compareTo(b[j]);
+
+            if (c <= 0) {
+                result[count++] = a[i++];
+
+                if (c == 0) {
+                    j++;
+                }
+            } else {
+                result[count++] = b[j++];
+            }
+        }
+
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Returns the index in sorted array union of each string of names.
+     */
+    private static int[] map(String[] names, String[] union) {
+        int[] indexes = new int[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            indexes[i] = Arrays.binarySearch(union, names[i]);
+        }
+
+        return indexes;
+    }
+
+    private static long encode(int from, int to) {
+        return ((long) from << 32) | to;
+    }
+
+    private static int getFrom(long edge) {
+        return (int) (edge >>> 32);
+    }
+
+    private static int getTo(long edge) {
+        return (int) edge;
+    }
+}
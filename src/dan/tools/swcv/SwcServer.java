@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A resident swcv process (--server) and the client that talks to it
+ * (--client).
+ * 
+ * The server listens on a localhost port. Each request carries the client's
+ * working directory and command line arguments; the server runs them just
+ * as the command line would and sends back the output and exit code. The
+ * JVM, the XML parser and recently loaded SWCs and package order files
+ * (see ModelCache) stay warm between requests.
+ * 
+ * A request runs with the server's user and can read and write any file
+ * that user can, so it must come from the same user. On start the server
+ * writes a random token to ~/.swcv/server-<port>.token, readable only by
+ * its owner; the client sends the token with each request and the server
+ * refuses requests without it. The file is deleted when the server exits.
+ * 
+ * Protocol (DataInput/DataOutput encoding):
+ * 
+ *     request:  UTF token, UTF working directory, int argument count,
+ *               UTF arguments
+ *     response: int output length, output bytes, int exit code
+ */
+class SwcServer {
+    private static final int MAX_SWCS = 16;
+    private static final int MAX_PACKAGE_ORDERS = 64;
+    private static final int TOKEN_BYTES = 32;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private SwcServer() {
+    }
+
+    /**
+     * Serves requests until the process is stopped.
+     * 
+     * @return the exit code, if the server could not be started
+     */
+    public static int serve(int port, int threads, PrintStream out) {
+        final ModelCache models = new ModelCache(MAX_SWCS, MAX_PACKAGE_ORDERS);
+        ServerSocket server;
+        final byte[] token;
+
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getByName(null));
+        } catch (Exception e) {
+            out.println("Error starting swcv server: " + e.getMessage());
+            return 1;
+        }
+
+        try {
+            token = createToken(getTokenFile(server.getLocalPort()));
+        } catch (Exception e) {
+            out.println("Error writing swcv server token: " + e.getMessage());
+
+            try {
+                server.close();
+            } catch (Exception e2) {
+                // ignore
+            }
+
+            return 1;
+        }
+
+        out.println("swcv server listening on localhost:"
+                + server.getLocalPort());
+        out.flush();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            while (true) {
+                final Socket socket = server.accept();
+
+                executor.execute(new Runnable() {
+                    public void run() {
+                        handle(socket, token, models);
+                    }
+                });
+            }
+        } catch (Exception e) {
+            out.println("Error in swcv server: " + e.getMessage());
+            return 1;
+        } finally {
+            executor.shutdownNow();
+
+            try {
+                server.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Sends a command line to the server on port and prints its output.
+     * 
+     * @return the exit code returned by the server
+     */
+    public static int request(int port, String[] args, PrintStream out) {
+        Socket socket = null;
+        String token;
+
+        try {
+            token = readToken(getTokenFile(port));
+        } catch (Exception e) {
+            out.println("Error reading swcv server token (is a server running"
+                    + " on port " + port + " as this user?): "
+                    + e.getMessage());
+            return 1;
+        }
+
+        try {
+            socket = new Socket(InetAddress.getByName(null), port);
+
+            DataOutputStream req = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream res = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+
+            req.writeUTF(token);
+            req.writeUTF(new File("").getAbsolutePath());
+            req.writeInt(args.length);
+
+            for (String arg : args) {
+                req.writeUTF(arg);
+            }
+
+            req.flush();
+
+            byte[] output = new byte[res.readInt()];
+
+            res.readFully(output);
+            out.write(output);
+            out.flush();
+
+            return res.readInt();
+        } catch (Exception e) {
+            out.println("Error talking to swcv server: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                socket.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void handle(Socket socket, byte[] token,
+            ModelCache models) {
+        try {
+            DataInputStream req = new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            DataOutputStream res = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buf);
+            int code;
+
+            // Nothing else of the request is read without the token.
+            if (!MessageDigest.isEqual(token, req.readUTF().getBytes(UTF8))) {
+                out.println("Invalid swcv server token.");
+                code = 1;
+            } else {
+                File dir = new File(req.readUTF());
+                String[] args = new String[req.readInt()];
+
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = req.readUTF();
+                }
+
+                code = SwcValidator.run(args, dir, models, out);
+            }
+
+            out.flush();
+            res.writeInt(buf.size());
+            buf.writeTo(res);
+            res.writeInt(code);
+            res.flush();
+        } catch (Exception e) {
+            // The client went away; nothing to report to.
+        } finally {
+            try {
+                socket.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the file that holds the token of the server on port.
+     */
+    private static File getTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".swcv"),
+                "server-" + port + ".token");
+    }
+
+    /**
+     * Writes a new random token to file, readable and writable only by the
+     * user, and returns it. The file is deleted when the JVM exits.
+     */
+    private static byte[] createToken(File file) throws Exception {
+        byte[] random = new byte[TOKEN_BYTES];
+        StringBuilder token = new StringBuilder();
+
+        new SecureRandom().nextBytes(random);
+
+        for (byte b : random) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16));
+            token.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        File dir = file.getParentFile();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new Exception("Cannot create directory " + dir);
+        }
+
+        setOwnerOnly(dir.toPath(), "rwx------");
+
+        // A token left by a server that was killed is replaced. The file is
+        // restricted before the token is written to it.
+        Path path = file.toPath();
+
+        Files.deleteIfExists(path);
+        Files.createFile(path);
+        file.deleteOnExit();
+        setOwnerOnly(path, "rw-------");
+
+        byte[] bytes = token.toString().getBytes(UTF8);
+
+        Files.write(path, bytes);
+        return bytes;
+    }
+
+    private static String readToken(File file) throws Exception {
+        return new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+    }
+
+    /**
+     * Makes a file or directory accessible only to its owner, with POSIX
+     * permissions where the file system has them.
+     */
+    private static void setOwnerOnly(Path path, String permissions)
+            throws Exception {
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions
+                    .fromString(permissions));
+        } catch (UnsupportedOperationException e) {
+            File file = path.toFile();
+            boolean dir = file.isDirectory();
+
+            if (!file.setReadable(false, false) || !file.setReadable(true)
+                    || !file.setWritable(false, false)
+                    || !file.setWritable(true)
+                    || (dir && (!file.setExecutable(false, false)
+                            || !file.setExecutable(true)))) {
+                throw new Exception("Cannot restrict access to " + file);
+            }
+        }
+    }
+}
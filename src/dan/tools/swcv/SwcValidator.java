@@ -22,11 +22,20 @@
 
 package dan.tools.swcv;
 
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Entry point for SwcValidator, a program that determines whether or not an
@@ -34,64 +43,457 @@ import java.util.Vector;
  * 
  * Programmer notes:
  * 
- * SWC reading and parsing is handled in Swc.java.
+ * SWC reading and parsing is handled in Swc.java. Once loaded, a Swc builds a
+ * DependencyGraph (DependencyGraph.java), an array based view of its packages
+ * that the validation and report algorithms run over.
  * 
  * The package dependency order specification is read and parsed by PackageOrder.java.
+ * A layer specification (LayerRules.java) can be used in its place; both are
+ * read through DependencyRules.java.
  * 
  * The algorithms that print the package report and validate a SWC are in this class. 
+ * 
+ * Other programs can validate in process instead of running the command
+ * line: load a Swc from a path or stream, read DependencyRules from a
+ * Reader (DependencyRules.read), then call validate() or report(). These
+ * methods neither print nor exit, and can be called from several threads
+ * at once, sharing the loaded models.
  */
 public class SwcValidator {
+    private static ForkJoinPool sharedPool;
+
     public static void main(String[] args) {
+        System.exit(run(args, null, null, System.out));
+    }
+
+    /**
+     * Runs swcv with the given command line arguments, printing to out
+     * instead of exiting.
+     * 
+     * @param dir the directory relative paths are resolved against, or null
+     *            for the current directory
+     * @param models the SWCs and package orders kept in memory by a server,
+     *            or null
+     * @return the exit code
+     */
+    static int run(String[] args, File dir, ModelCache models, PrintStream out) {
+        if (args.length > 0 && Options.MODE_CLIENT.equals(args[0])) {
+            int port = (args.length > 1) ? Options.parseInt(args[1]) : -1;
+
+            if (port < 0 || models != null) {
+                usage(out, "Invalid arguments.");
+                return 1;
+            }
+
+            String[] forward = new String[args.length - 2];
+            System.arraycopy(args, 2, forward, 0, forward.length);
+
+            return SwcServer.request(port, forward, out);
+        }
+
         Options options = new Options(args);
-        int result;
 
-        if (options.isValid()) {
-            result = swcv(options);
-        } else {
-            usage("Invalid arguments.");
-            result = 1;
+        if (!options.isValid()) {
+            usage(out, "Invalid arguments.");
+            return 1;
+        }
+
+        if (dir != null) {
+            if (Options.STDIN.equals(options.getSwcFilename())) {
+                out.println("A client request cannot read a swc from stdin.");
+                return 1;
+            }
+
+            options.resolvePaths(dir);
         }
 
-        System.exit(result);
+        if (Options.MODE_SERVER.equals(options.getMode())) {
+            if (models != null) {
+                out.println("A server cannot be started by a client request.");
+                return 1;
+            }
+
+            return SwcServer.serve(options.getPort(), options.getThreads(),
+                    out);
+        }
+
+        CatalogCache cache = null;
+
+        if (options.getCacheDir() != null) {
+            cache = new CatalogCache(new File(options.getCacheDir()),
+                    options.getCacheMaxAge() * 24L * 60 * 60 * 1000,
+                    options.getCacheMaxSize() * 1024L * 1024);
+        }
+
+        if (Options.MODE_BATCH.equals(options.getMode())) {
+            return new BatchValidator(options.getThreads(),
+                    options.isAllViolations(), cache).run(
+                    options.getBatchFilename(), out);
+        }
+
+        if (options.isWatch()) {
+            if (models != null) {
+                out.println("A client request cannot watch files.");
+                return 1;
+            }
+
+            return watch(options, cache, out);
+        }
+
+        return validate(options, cache, models, out);
     }
 
-    private static int swcv(Options options) {
+    /**
+     * Validates the swc (or prints its report), followed by --stats.
+     */
+    private static int validate(Options options, CatalogCache cache,
+            ModelCache models, PrintStream out) {
+        Stats stats = (options.getStatsFormat() != null) ? new Stats() : null;
+        int result = swcv(options, cache, models, stats, out);
+
+        if (Options.OPT_STATS.equals(options.getStatsFormat())) {
+            stats.print(out);
+        } else if (Options.OPT_STATS_JSON.equals(options.getStatsFormat())) {
+            stats.printJson(out);
+        }
+
+        return result;
+    }
+
+    /**
+     * Validates whenever the swc, the package order file or a library
+     * changes. The models of the files that did not change stay loaded.
+     */
+    private static int watch(final Options options, final CatalogCache cache,
+            final PrintStream out) {
+        final ModelCache models = new ModelCache(1, 1);
+        List<String> files = new ArrayList<String>();
+
+        files.add(options.getSwcFilename());
+
+        if (Options.MODE_PKG_ORDER_FILE.equals(options.getMode())) {
+            files.add(options.getPackageOrderData());
+        } else if (Options.MODE_DIFF.equals(options.getMode())) {
+            files.add(options.getDiffFilename());
+        }
+
+        files.addAll(options.getLibraryPath());
+
+        return new SwcWatcher(files, out).watch(new Callable<Integer>() {
+            public Integer call() {
+                return Integer.valueOf(validate(options, cache, models, out));
+            }
+        });
+    }
+
+    private static int swcv(Options options, CatalogCache cache,
+            ModelCache models, Stats stats, PrintStream out) {
         Swc swc;
 
+        if (options.getMemoryBudget() > 0) {
+            return swcvExternal(options, stats, out);
+        } else if (models == null && options.isPipelined()) {
+            return swcvPipelined(options, out);
+        }
+
         // Parse the swc. All modes require the swc package information.
         try {
-            swc = new Swc(options.getSwcFilename());
+            if (Options.STDIN.equals(options.getSwcFilename())) {
+                swc = new Swc(System.in, stats);
+            } else if (models != null) {
+                swc = models.getSwc(options.getSwcFilename(), cache);
+            } else {
+                swc = new Swc(options.getSwcFilename(), cache, stats);
+            }
         } catch (Exception e) {
-            System.out.println("Error opening swc: " + e.getMessage());
+            out.println("Error opening swc: " + e.getMessage());
             return 1;
         }
 
+        if (stats != null) {
+            stats.count(swc);
+        }
+
         if (Options.MODE_PKG_REPORT.equals(options.getMode())) {
-            return packageReport(swc);
+            startPhase(stats, "report");
+
+            int result = packageReport(swc, options.getReportFormat(), out);
+
+            stopPhase(stats);
+            return result;
+        } else if (Options.MODE_PKG_INFER.equals(options.getMode())) {
+            startPhase(stats, "infer");
+
+            int result = inferPackageOrder(swc, out);
+
+            stopPhase(stats);
+            return result;
+        } else if (Options.MODE_CHECK_CATALOG.equals(options.getMode())) {
+            startPhase(stats, "check catalog");
+
+            int result = checkCatalog(swc, options.getSwcFilename(), out);
+
+            stopPhase(stats);
+            return result;
+        } else if (Options.MODE_DIFF.equals(options.getMode())) {
+            Swc oldSwc;
+
+            startPhase(stats, "open old swc");
+
+            // The old swc is not kept in models, where it would take the
+            // place of the swc being watched or served.
+            try {
+                oldSwc = new Swc(options.getDiffFilename(), cache);
+            } catch (Exception e) {
+                out.println("Error opening old swc: " + e.getMessage());
+                return 1;
+            }
+
+            startPhase(stats, "diff");
+            new SwcDiff(oldSwc, swc).print(out);
+            stopPhase(stats);
+            return 0;
         } else {
-            PackageOrder packageOrder = null;
-            Reader reader = null;
+            startPhase(stats, "package order");
+
+            DependencyRules packageOrder = readRules(options, models, out);
+
+            if (packageOrder == null) {
+                return 1;
+            }
+
+            // Symbols used from --library-path SWCs are checked as well.
+            LibraryIndex libraries = null;
+
+            if (!options.getLibraryPath().isEmpty()) {
+                startPhase(stats, "libraries");
+
+                try {
+                    libraries = LibraryIndex.build(swc.getDependencyGraph(),
+                            options.getLibraryPath());
+                } catch (Exception e) {
+                    out.println("Error opening library swc: "
+                            + e.getMessage());
+                    return 1;
+                }
+
+                if (stats != null) {
+                    stats.setCounter("librarySymbols", libraries
+                            .getSymbolCount());
+                }
+            }
+
+            // Now, validate the swc. With --incremental, a swc whose changes
+            // since the last successful run pass does not need a full
+            // validation.
+            IncrementalValidator incremental = null;
+            int result;
+
+            if (options.getStateFilename() != null) {
+                incremental = new IncrementalValidator(new File(options
+                        .getStateFilename()));
+            }
+
+            if (incremental != null) {
+                startPhase(stats, "incremental check");
+            }
+
+            if (incremental != null
+                    && incremental.check(swc, packageOrder, libraries)) {
+                result = 0;
+            } else {
+                startPhase(stats, "validate");
+                result = validatePackageOrder(swc, packageOrder, libraries,
+                        options.isAllViolations(), options.isExplain(), null,
+                        out);
+            }
+
+            if (result == 0 && incremental != null) {
+                startPhase(stats, "incremental save");
 
-            // Choose a reader.
-            if (Options.MODE_PKG_ORDER_FILE.equals(options.getMode())) {
                 try {
-                    reader = new FileReader(options.getPackageOrderData());
+                    incremental.save(swc, packageOrder);
                 } catch (Exception e) {
-                    System.out.println("Error opening package order file: "
+                    out.println("Error saving incremental state: "
+                            + e.getMessage());
+                }
+            }
+
+            stopPhase(stats);
+            return result;
+        }
+    }
+
+    /**
+     * Validates while the catalog is parsed (see PipelinedValidator). The
+     * package order is read first, so a bad package order is reported
+     * without reading the swc.
+     */
+    private static int swcvPipelined(Options options, PrintStream out) {
+        DependencyRules packageOrder = readRules(options, null, out);
+
+        if (packageOrder == null) {
+            return 1;
+        }
+
+        PipelinedValidator validator = new PipelinedValidator(packageOrder,
+                options.isAllViolations());
+        ValidationResult result;
+        InputStream in = null;
+
+        try {
+            if (Options.STDIN.equals(options.getSwcFilename())) {
+                result = validator.validate(SwcArchive.openCatalog(System.in));
+            } else {
+                in = SwcArchive.openCatalog(new File(options.getSwcFilename()));
+                result = validator.validate(in);
+            }
+        } catch (Exception e) {
+            out.println("Error opening swc: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+
+        return printResult(result, options.isAllViolations(), null, out);
+    }
+
+    /**
+     * Runs --pkg-report or a validation with the catalog held in run files
+     * (see ExternalCatalog) rather than in a Swc.
+     */
+    private static int swcvExternal(Options options, Stats stats,
+            PrintStream out) {
+        ExternalCatalog catalog = new ExternalCatalog(null, options
+                .getMemoryBudget() * 1024L * 1024L);
+
+        try {
+            startPhase(stats, "open");
+
+            // Parse the swc into sorted runs.
+            InputStream in = null;
+
+            try {
+                if (Options.STDIN.equals(options.getSwcFilename())) {
+                    catalog.load(SwcArchive.openCatalog(System.in));
+                } else {
+                    in = SwcArchive.openCatalog(new File(options
+                            .getSwcFilename()));
+                    catalog.load(in);
+                }
+            } catch (Exception e) {
+                out.println("Error opening swc: " + e.getMessage());
+                return 1;
+            } finally {
+                try {
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+
+            if (stats != null) {
+                stats.setCounter("packages", catalog.getPackageCount());
+                stats.setCounter("runs", catalog.getRunCount());
+            }
+
+            if (Options.MODE_PKG_REPORT.equals(options.getMode())) {
+                startPhase(stats, "report");
+
+                try {
+                    catalog.report(options.getReportFormat(), out);
+                } catch (IOException e) {
+                    out.println("Error writing package report: "
                             + e.getMessage());
                     return 1;
                 }
-            } else if (Options.MODE_PKG_ORDER.equals(options.getMode())) {
-                reader = new StringReader(options.getPackageOrderData());
+
+                stopPhase(stats);
+                return 0;
+            }
+
+            startPhase(stats, "package order");
+
+            DependencyRules packageOrder = readRules(options, null, out);
+
+            if (packageOrder == null) {
+                return 1;
+            }
+
+            startPhase(stats, "validate");
+
+            ValidationResult result;
+
+            try {
+                result = catalog.validate(packageOrder, options
+                        .isAllViolations());
+            } catch (IOException e) {
+                out.println("Error writing run file: " + e.getMessage());
+                return 1;
+            }
+
+            stopPhase(stats);
+            return printResult(result, options.isAllViolations(), null, out);
+        } finally {
+            catalog.close();
+        }
+    }
+
+    /**
+     * Reads the package order or layer rules of a --pkg-order or
+     * --pkg-order-file run, printing any error.
+     * 
+     * @return the rules, or null on error
+     */
+    private static DependencyRules readRules(Options options,
+            ModelCache models, PrintStream out) {
+        DependencyRules packageOrder = null;
+        Reader reader = null;
+
+        // Choose a reader. A server keeps package order files it has
+        // already parsed.
+        if (Options.MODE_PKG_ORDER_FILE.equals(options.getMode())
+                && models != null) {
+            try {
+                packageOrder = models.getPackageOrder(options
+                        .getPackageOrderData());
+            } catch (FileNotFoundException e) {
+                out.println("Error opening package order file: "
+                        + e.getMessage());
+                return null;
+            } catch (Exception e) {
+                out.println("Error parsing package order data: "
+                        + e.getMessage());
+                return null;
             }
+        } else if (Options.MODE_PKG_ORDER_FILE.equals(options.getMode())) {
+            try {
+                reader = new FileReader(options.getPackageOrderData());
+            } catch (Exception e) {
+                out.println("Error opening package order file: "
+                        + e.getMessage());
+                return null;
+            }
+        } else if (Options.MODE_PKG_ORDER.equals(options.getMode())) {
+            reader = new StringReader(options.getPackageOrderData());
+        }
 
-            // Parse the package order data.
+        // Parse the package order data.
+        if (packageOrder == null) {
             try {
-                packageOrder = new PackageOrder(reader);
+                packageOrder = DependencyRules.read(reader);
             } catch (Exception e) {
-                System.out.println("Error parsing package order data: "
+                out.println("Error parsing package order data: "
                         + e.getMessage());
-                return 1;
+                return null;
             } finally {
                 try {
                     reader.close();
@@ -99,25 +501,50 @@ public class SwcValidator {
                     // ignore
                 }
             }
+        }
+
+        return packageOrder;
+    }
 
-            // Now, validate the swc.
-            return validatePackageOrder(swc, packageOrder);
+    private static void startPhase(Stats stats, String name) {
+        if (stats != null) {
+            stats.start(name);
         }
     }
 
-    private static void usage(String msg) {
-        PrintStream o = System.out;
-        
+    private static void stopPhase(Stats stats) {
+        if (stats != null) {
+            stats.stop();
+        }
+    }
+
+    private static void usage(PrintStream o, String msg) {        
         if (msg != null) {
             o.println(msg);
         }
 
-        o.println("Usage: swcv <swcfile> [options]");
+        o.println("Usage: swcv <swcfile> [options]   (swcfile - reads stdin)");
+        o.println("       swcv --batch <manifest-file> [--threads n] [--all-violations]");
+        o.println("       swcv --server <port> [--threads n]");
+        o.println("       swcv --client <port> <swcv arguments>");
         
         o.println("Options:");
         o.println("--pkg-order-file <package-order-file>");
         o.println("--pkg-order package-order");
-        o.println("--pkg-report");
+        o.println("--pkg-report [--report-format text|json|csv]");
+        o.println("--pkg-infer");
+        o.println("--check-catalog (compare catalog.xml with the bytecode in library.swf)");
+        o.println("--diff <old-swcfile> (list the dependencies added since old-swcfile)");
+        o.println("--all-violations (with --pkg-order or --pkg-order-file)");
+        o.println("--explain (with --pkg-order or --pkg-order-file)");
+        o.println("--library-path <swcfile>[" + File.pathSeparator
+                + "<swcfile>...] (with --pkg-order or --pkg-order-file)");
+        o.println("--cache-dir <dir> [--cache-max-age days] [--cache-max-size MB]");
+        o.println("--incremental <state-file> (with --pkg-order or --pkg-order-file)");
+        o.println("--stats | --stats-json");
+        o.println("--memory-budget <MB> (sort the catalog in temporary files; with --pkg-report,");
+        o.println("    --pkg-order or --pkg-order-file)");
+        o.println("--watch (validate again whenever the swc or package order file changes)");
         
         o.println("Package Dependency Order:");
         
@@ -144,93 +571,195 @@ public class SwcValidator {
 //        		"<swcfile> --pkg-report");
     }
 
-    private static int packageReport(Swc swc) {
-        for (Package pkg : swc.packagesIterator()) {
-            Vector<Symbol> pkgDep = new Vector<Symbol>();
-            Vector<String> pkgDepByPackage = new Vector<String>();
-            Vector<Symbol> extDep = new Vector<Symbol>();
-            Vector<String> extDepByPackage = new Vector<String>();
+    /**
+     * Prints the package report of a swc in format (see PackageReport).
+     * 
+     * @return the exit code
+     */
+    static int packageReport(Swc swc, String format, PrintStream out) {
+        try {
+            report(swc, format, out);
+        } catch (IOException e) {
+            out.println("Error writing package report: " + e.getMessage());
+            return 1;
+        }
 
-            for (Symbol dep : pkg.dependenciesIterator()) {
-                Package p = swc.getPackage(dep.getPackageName());
+        return 0;
+    }
 
-                if (p != null && p.hasExport(dep)) {
-                    pkgDep.add(dep);
+    /**
+     * Prints the smallest package order the swc satisfies, in package order
+     * syntax, or the package dependency cycles that prevent one.
+     * 
+     * @return the exit code
+     */
+    static int inferPackageOrder(Swc swc, PrintStream out) {
+        DependencyGraph graph = swc.getDependencyGraph();
+        SymbolTable symbols = graph.getSymbolTable();
+        PackageOrderInference inference = new PackageOrderInference(graph);
 
-                    if (!pkgDepByPackage.contains(dep.getPackageName())) {
-                        pkgDepByPackage.add(dep.getPackageName());
-                    }
-                } else {
-                    extDep.add(dep);
+        if (inference.getCycles().isEmpty()) {
+            out.print(inference.toSpecification());
+            return 0;
+        }
 
-                    if (!extDepByPackage.contains(dep.getPackageName())) {
-                        extDepByPackage.add(dep.getPackageName());
-                    }
-                }
+        for (int[] component : inference.getCycles()) {
+            int[] cycle = inference.findShortestCycle(component);
+
+            out.print("Package dependency cycle between " + component.length
+                    + " packages: ");
+
+            for (int i = 0; i < component.length; i++) {
+                out.print(((i > 0) ? ", " : "")
+                        + graph.getPackageName(component[i]));
             }
 
-            System.out.println(pkg.getName());
+            out.println();
 
-            System.out.println("\tExports");
+            for (int i = 0; i < cycle.length; i++) {
+                int p = cycle[i];
+                int q = cycle[(i + 1) % cycle.length];
 
-            for (Symbol exp : pkg.exportsIterator()) {
-                System.out.println("\t\t" + exp.getName());
+                out.println("\t" + graph.getPackageName(p) + " -> "
+                        + symbols.getSymbol(inference.findWitness(p, q)));
             }
+        }
+
+        out.println(inference.getCycles().size()
+                + " package dependency cycle(s); no package order exists.");
+        return 1;
+    }
 
-            System.out.println("\tDependencies");
+    /**
+     * Compares the catalog of a swc with the bytecode in its library.swf
+     * (see CatalogCheck) and prints the differences.
+     * 
+     * @return the exit code
+     */
+    static int checkCatalog(Swc swc, String swcFilename, PrintStream out) {
+        CatalogCheck check = new CatalogCheck(swc);
+        InputStream in = null;
 
-            if (!pkgDep.isEmpty()) {
-                for (Symbol s : pkgDep) {
-                    System.out.println("\t\t" + s);
+        try {
+            in = SwcArchive.openEntry(new File(swcFilename),
+                    SwcArchive.LIBRARY);
+            check.check(in);
+        } catch (Exception e) {
+            out.println("Error reading library.swf: " + e.getMessage());
+            return 1;
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
                 }
-            } else {
-                System.out.println("\t\t<Empty>");
+            } catch (Exception e) {
+                // ignore
             }
+        }
 
-            System.out.println("\tDependencies By Package");
+        for (String id : check.getUnknownClasses()) {
+            out.println("Catalog check failure: class " + id
+                    + " is not in the catalog.");
+        }
 
-            if (!pkgDepByPackage.isEmpty()) {
-                for (String p : pkgDepByPackage) {
-                    System.out.println("\t\t" + p);
-                }
-            } else {
-                System.out.println("\t\t<Empty>");
-            }
+        int missing = 0;
+        int stale = 0;
 
-            System.out.println("\tExternal Dependencies");
+        for (CatalogCheck.Mismatch m : check.getMismatches()) {
+            if (!m.getMissing().isEmpty()) {
+                out.println("Catalog check failure: script " + m.getScript()
+                        + " is missing deps:");
 
-            if (!extDep.isEmpty()) {
-                for (Symbol s : extDep) {
-                    System.out.println("\t\t" + s);
+                for (Symbol symbol : m.getMissing()) {
+                    out.println("\t" + symbol);
                 }
-            } else {
-                System.out.println("\t\t<Empty>");
             }
 
-            System.out.println("\tExternal Dependencies By Package");
+            if (!m.getStale().isEmpty()) {
+                out.println("Catalog check failure: script " + m.getScript()
+                        + " has stale deps:");
 
-            if (!extDepByPackage.isEmpty()) {
-                for (String p : extDepByPackage) {
-                    System.out.println("\t\t" + p);
+                for (Symbol symbol : m.getStale()) {
+                    out.println("\t" + symbol);
                 }
-            } else {
-                System.out.println("\t\t<Empty>");
             }
+
+            missing += m.getMissing().size();
+            stale += m.getStale().size();
         }
 
-        return 0;
+        if (check.isValid()) {
+            out.println("Catalog matches library.swf: " + check.getClassCount()
+                    + " class(es) in " + check.getTagCount()
+                    + " DoABC tag(s).");
+            return 0;
+        }
+
+        out.println(check.getUnknownClasses().size()
+                + " class(es) not in the catalog, " + missing
+                + " missing dep(s), " + stale + " stale dep(s).");
+        return 1;
     }
 
-    private static int validatePackageOrder(Swc swc, PackageOrder dependencies) {
-        // Ensure that the PackageOrder ranks all packages defined in the
-        // swc. If not, raise an error.
-        for (Package pkg : swc.packagesIterator()) {
-            if (dependencies.getRank(pkg.getName()) == -1) {
-                System.out
-                        .println("Package order file should rank ALL packages in swc. Package "
-                                + pkg.getName() + " is missing.");
-                return 1;
-            }
+    /**
+     * Validates a swc against a package order or layer rules (see
+     * DependencyRules.read). With allViolations false, the validation stops
+     * at the first problem. Dependencies on symbols the swc does not define
+     * are not checked.
+     * 
+     * Loaded Swc and DependencyRules objects are never modified, so they can
+     * be shared by any number of threads validating at the same time.
+     */
+    public static ValidationResult validate(Swc swc, DependencyRules rules,
+            boolean allViolations) {
+        return validate(swc, rules, null, allViolations, null);
+    }
+
+    /**
+     * Validates a swc, including its uses of symbols defined by the library
+     * swcs in libraryPath (see --library-path). A null or empty libraryPath
+     * means no libraries.
+     */
+    public static ValidationResult validate(Swc swc, DependencyRules rules,
+            List<String> libraryPath, boolean allViolations) throws Exception {
+        LibraryIndex libraries = (libraryPath == null || libraryPath
+                .isEmpty()) ? null : LibraryIndex.build(swc
+                .getDependencyGraph(), libraryPath);
+
+        return validate(swc, rules, libraries, allViolations, null);
+    }
+
+    /**
+     * Writes the package report of a swc (--pkg-report) in format "text",
+     * "json" or "csv". The stream is flushed but not closed.
+     */
+    public static void report(Swc swc, String format, OutputStream out)
+            throws IOException {
+        if (!PackageReport.isFormat(format)) {
+            throw new IllegalArgumentException("Unknown report format: "
+                    + format);
+        }
+
+        new PackageReport(swc.getDependencyGraph(), format).write(out);
+    }
+
+    /**
+     * Validates a swc. libraries may be null. pool is used for
+     * allViolations; if null, a pool shared by all callers is used.
+     */
+    static ValidationResult validate(Swc swc, DependencyRules dependencies,
+            LibraryIndex libraries, boolean allViolations, ForkJoinPool pool) {
+        DependencyGraph graph = swc.getDependencyGraph();
+        List<String> missing = new ArrayList<String>();
+        List<Violation> none = Collections.emptyList();
+
+        // Ensure that the rules rank all packages defined in the swc. If
+        // not, raise an error.
+        int[] ranks = DependencyValidator.rankPackages(graph, dependencies,
+                missing);
+
+        if (!missing.isEmpty() && !allViolations) {
+            return new ValidationResult(missing.subList(0, 1), none, false);
         }
 
         // Algorithm:
@@ -243,31 +772,197 @@ public class SwcValidator {
         // of higher rank. Each package has a list of dependent symbols,
         // so this check can be performed easily. Note: Dependencies on
         // external symbols (symbols not defined in the swc) will be
-        // ignored.
+        // ignored. See DependencyValidator.
         //
         // If all packages in the swc pass the above tests, the swc's
         // packages meet the package dependency order specification.
-        for (Package pkg : swc.packagesIterator()) {
-            int pkgRank = dependencies.getRank(pkg.getName());
+        if (!allViolations) {
+            Violation v = DependencyValidator.findFirstViolation(graph,
+                    dependencies, ranks, libraries);
+
+            if (v != null) {
+                return new ValidationResult(missing, attribute(swc, Collections
+                        .singletonList(v)), false);
+            }
+
+            return new ValidationResult(missing, none, true);
+        }
+
+        // Report everything: all missing packages, then the violations of
+        // the ranked packages, grouped by package.
+        List<Violation> violations = DependencyValidator.findAllViolations(
+                graph, dependencies, ranks, libraries,
+                (pool != null) ? pool : getSharedPool());
+
+        return new ValidationResult(missing, attribute(swc, violations), true);
+    }
+
+    /**
+     * Names the classes behind each violation (see Violation.getClasses).
+     */
+    private static List<Violation> attribute(Swc swc,
+            List<Violation> violations) {
+        if (violations.isEmpty()) {
+            return violations;
+        }
+
+        DependencyGraph graph = swc.getDependencyGraph();
+        ScriptIndex index = new ScriptIndex(swc);
+        List<Violation> result = new ArrayList<Violation>(violations.size());
+
+        for (Violation v : violations) {
+            result.add(new Violation(v.getPackageName(), v.getSymbol(), index
+                    .findClasses(graph.findPackage(v.getPackageName()), v
+                            .getSymbol().getId())));
+        }
+
+        return result;
+    }
+
+    private static synchronized ForkJoinPool getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool();
+        }
+
+        return sharedPool;
+    }
+
+    /**
+     * Validates a swc against a package order or layer rules, printing any
+     * problems to out. Uses of symbols from libraries are validated too, if
+     * libraries is not null; library packages the rules do not cover are
+     * ignored. pool is used for --all-violations; if null, a shared pool
+     * is used. With explain, each violation is followed by the dependency
+     * chain, if any, that leads from the symbol back to the package (see
+     * --explain).
+     * 
+     * @return the exit code
+     */
+    static int validatePackageOrder(Swc swc, DependencyRules dependencies,
+            LibraryIndex libraries, boolean allViolations, boolean explain,
+            ForkJoinPool pool, PrintStream out) {
+        ValidationResult result = validate(swc, dependencies, libraries,
+                allViolations, pool);
+
+        return printResult(result, allViolations, explain ? swc : null, out);
+    }
 
-            for (Symbol dep : pkg.dependenciesIterator()) {
-                Package p = swc.getPackage(dep.getPackageName());
+    /**
+     * Prints the problems of a validation. The violations are explained
+     * (see --explain) if swc is not null.
+     * 
+     * @return the exit code
+     */
+    private static int printResult(ValidationResult result,
+            boolean allViolations, Swc swc, PrintStream out) {
+        boolean explain = (swc != null);
+        List<String> missing = result.getMissingPackages();
+        List<Violation> violations = result.getViolations();
 
-                if (p == null || !p.hasExport(dep)) {
-                    continue;
+        if (result.isValid()) {
+            return 0;
+        }
+
+        if (!allViolations) {
+            if (!missing.isEmpty()) {
+                out.println("Package order file should rank ALL packages in swc. Package "
+                                + missing.get(0) + " is missing.");
+            } else {
+                Violation v = violations.get(0);
+
+                out.println("Dependency validation failure: package "
+                        + v.getPackageName()
+                        + " cannot import or use symbol: " + v.getSymbol()
+                        + usedBy(v));
+
+                if (explain) {
+                    ScriptIndex index = new ScriptIndex(swc);
+
+                    explain(index, index.findChains(swc.getDependencyGraph()
+                            .findPackage(v.getPackageName())), v, "\t", out);
                 }
+            }
 
-                if (dependencies.getRank(dep.getPackageName()) > pkgRank) {
-                    System.out
-                            .println("Dependency validation failure: package "
-                                    + pkg.getName()
-                                    + " cannot import or use symbol: " + dep);
-                    return 1;
+            return 1;
+        }
+
+        String lastPackage = null;
+        int packageCount = 0;
+        ScriptIndex index = explain ? new ScriptIndex(swc) : null;
+        int[] chains = null;
+
+        for (String pkg : missing) {
+            out.println("Package order file should rank ALL packages in swc. Package "
+                            + pkg + " is missing.");
+        }
+
+        for (Violation v : violations) {
+            if (!v.getPackageName().equals(lastPackage)) {
+                lastPackage = v.getPackageName();
+                packageCount++;
+                out.println("Dependency validation failure: package "
+                        + lastPackage + " cannot import or use symbols:");
+
+                if (explain) {
+                    chains = index.findChains(swc.getDependencyGraph()
+                            .findPackage(lastPackage));
                 }
             }
+
+            out.println("\t" + v.getSymbol() + usedBy(v));
+
+            if (explain) {
+                explain(index, chains, v, "\t\t", out);
+            }
         }
 
-        return 0;
+        out.println(missing.size() + " missing package(s), "
+                + violations.size() + " violation(s) in " + packageCount
+                + " package(s).");
+        return 1;
+    }
+
+    private static String usedBy(Violation v) {
+        if (v.getClasses().isEmpty()) {
+            return "";
+        }
+
+        StringBuilder s = new StringBuilder(" (used by ");
+
+        for (int i = 0; i < v.getClasses().size(); i++) {
+            s.append((i > 0) ? ", " : "").append(v.getClasses().get(i));
+        }
+
+        return s.append(")").toString();
+    }
+
+    /**
+     * Prints the shortest chain that starts at a class using the symbol of
+     * a violation and leads through the symbol back into the class's
+     * package. chains are the index's chains to the package.
+     */
+    private static void explain(ScriptIndex index, int[] chains, Violation v,
+            String indent, PrintStream out) {
+        List<Symbol> chain = index.getChain(chains, v.getSymbol().getId());
+
+        if (chain == null) {
+            out.println(indent + "no dependency chain leads from "
+                    + v.getSymbol() + " back to package "
+                    + v.getPackageName());
+            return;
+        }
+
+        StringBuilder s = new StringBuilder(indent + "chain: ");
+
+        if (!v.getClasses().isEmpty()) {
+            s.append(v.getClasses().get(0)).append(" -> ");
+        }
+
+        for (int i = 0; i < chain.size(); i++) {
+            s.append((i > 0) ? " -> " : "").append(chain.get(i));
+        }
+
+        out.println(s);
     }
 
     /**
@@ -278,10 +973,46 @@ public class SwcValidator {
         private static final String MODE_PKG_REPORT = "--pkg-report";
         private static final String MODE_PKG_ORDER_FILE = "--pkg-order-file";
         private static final String MODE_PKG_ORDER = "--pkg-order";
+        private static final String MODE_PKG_INFER = "--pkg-infer";
+        private static final String MODE_CHECK_CATALOG = "--check-catalog";
+        private static final String MODE_DIFF = "--diff";
+        private static final String MODE_BATCH = "--batch";
+        private static final String MODE_SERVER = "--server";
+        private static final String MODE_CLIENT = "--client";
+        private static final String STDIN = "-";
+        private static final String OPT_ALL_VIOLATIONS = "--all-violations";
+        private static final String OPT_EXPLAIN = "--explain";
+        private static final String OPT_THREADS = "--threads";
+        private static final String OPT_INCREMENTAL = "--incremental";
+        private static final String OPT_LIBRARY_PATH = "--library-path";
+        private static final String OPT_WATCH = "--watch";
+        private static final String OPT_MEMORY_BUDGET = "--memory-budget";
+        private static final String OPT_STATS = "--stats";
+        private static final String OPT_STATS_JSON = "--stats-json";
+        private static final String OPT_REPORT_FORMAT = "--report-format";
+        private static final String OPT_CACHE_DIR = "--cache-dir";
+        private static final String OPT_CACHE_MAX_AGE = "--cache-max-age";
+        private static final String OPT_CACHE_MAX_SIZE = "--cache-max-size";
 
         private String mode;
         private String swcFilename;
         private String packageOrderData;
+        private String diffFilename;
+        private boolean allViolations;
+        private boolean explain;
+        private String batchFilename;
+        private int port = -1;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private String stateFilename;
+        private List<String> libraryPath = new ArrayList<String>();
+        private boolean libraryPathValid = true;
+        private String statsFormat;
+        private boolean watch;
+        private int memoryBudget;
+        private String reportFormat = PackageReport.TEXT;
+        private String cacheDir;
+        private int cacheMaxAge = 30;
+        private int cacheMaxSize = 512;
 
         public Options(String[] args) {
             int i = 0;
@@ -289,6 +1020,14 @@ public class SwcValidator {
             while (i < args.length) {
                 if (MODE_PKG_REPORT.equals(args[i])) {
                     mode = MODE_PKG_REPORT;
+                } else if (MODE_PKG_INFER.equals(args[i])) {
+                    mode = MODE_PKG_INFER;
+                } else if (MODE_CHECK_CATALOG.equals(args[i])) {
+                    mode = MODE_CHECK_CATALOG;
+                } else if (MODE_DIFF.equals(args[i])) {
+                    mode = MODE_DIFF;
+                    i++;
+                    diffFilename = (i < args.length) ? args[i] : null;
                 } else if (MODE_PKG_ORDER_FILE.equals(args[i])) {
                     mode = MODE_PKG_ORDER_FILE;
                     i++;
@@ -297,6 +1036,56 @@ public class SwcValidator {
                     mode = MODE_PKG_ORDER;
                     i++;
                     packageOrderData = (i < args.length) ? args[i] : null;
+                } else if (MODE_BATCH.equals(args[i])) {
+                    mode = MODE_BATCH;
+                    i++;
+                    batchFilename = (i < args.length) ? args[i] : null;
+                } else if (MODE_SERVER.equals(args[i])) {
+                    mode = MODE_SERVER;
+                    i++;
+                    port = parseInt((i < args.length) ? args[i] : null);
+                } else if (OPT_ALL_VIOLATIONS.equals(args[i])) {
+                    allViolations = true;
+                } else if (OPT_EXPLAIN.equals(args[i])) {
+                    explain = true;
+                } else if (OPT_THREADS.equals(args[i])) {
+                    i++;
+                    threads = parseInt((i < args.length) ? args[i] : null);
+                } else if (OPT_LIBRARY_PATH.equals(args[i])) {
+                    i++;
+
+                    if (i < args.length) {
+                        for (String s : args[i].split(File.pathSeparator)) {
+                            if (s.length() > 0) {
+                                libraryPath.add(s);
+                            }
+                        }
+                    } else {
+                        libraryPathValid = false;
+                    }
+                } else if (OPT_INCREMENTAL.equals(args[i])) {
+                    i++;
+                    stateFilename = (i < args.length) ? args[i] : null;
+                } else if (OPT_WATCH.equals(args[i])) {
+                    watch = true;
+                } else if (OPT_MEMORY_BUDGET.equals(args[i])) {
+                    i++;
+                    memoryBudget = parseInt((i < args.length) ? args[i] : null);
+                } else if (OPT_STATS.equals(args[i])
+                        || OPT_STATS_JSON.equals(args[i])) {
+                    statsFormat = args[i];
+                } else if (OPT_REPORT_FORMAT.equals(args[i])) {
+                    i++;
+                    reportFormat = (i < args.length) ? args[i] : null;
+                } else if (OPT_CACHE_DIR.equals(args[i])) {
+                    i++;
+                    cacheDir = (i < args.length) ? args[i] : null;
+                } else if (OPT_CACHE_MAX_AGE.equals(args[i])) {
+                    i++;
+                    cacheMaxAge = parseInt((i < args.length) ? args[i] : null);
+                } else if (OPT_CACHE_MAX_SIZE.equals(args[i])) {
+                    i++;
+                    cacheMaxSize = parseInt((i < args.length) ? args[i] : null);
                 } else {
                     if (swcFilename != null) {
                         return;
@@ -321,11 +1110,178 @@ public class SwcValidator {
             return packageOrderData;
         }
 
+        /**
+         * Returns the old swc of --diff.
+         */
+        public String getDiffFilename() {
+            return diffFilename;
+        }
+
+        public boolean isAllViolations() {
+            return allViolations;
+        }
+
+        public boolean isExplain() {
+            return explain;
+        }
+
+        public String getBatchFilename() {
+            return batchFilename;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * Returns the library SWCs, in search order.
+         */
+        public List<String> getLibraryPath() {
+            return libraryPath;
+        }
+
+        public boolean isWatch() {
+            return watch;
+        }
+
+        /**
+         * The memory budget of --memory-budget, in megabytes, or 0 to load
+         * the whole catalog.
+         */
+        public int getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        public String getStateFilename() {
+            return stateFilename;
+        }
+
+        /**
+         * Returns OPT_STATS, OPT_STATS_JSON or null.
+         */
+        public String getStatsFormat() {
+            return statsFormat;
+        }
+
+        public String getReportFormat() {
+            return reportFormat;
+        }
+
+        public String getCacheDir() {
+            return cacheDir;
+        }
+
+        /**
+         * Maximum age of a cache entry, in days.
+         */
+        public int getCacheMaxAge() {
+            return cacheMaxAge;
+        }
+
+        /**
+         * Maximum size of the cache, in megabytes.
+         */
+        public int getCacheMaxSize() {
+            return cacheMaxSize;
+        }
+
+        /**
+         * Makes the relative file arguments relative to dir instead of the
+         * current directory.
+         */
+        public void resolvePaths(File dir) {
+            swcFilename = resolve(dir, swcFilename);
+            batchFilename = resolve(dir, batchFilename);
+            stateFilename = resolve(dir, stateFilename);
+            cacheDir = resolve(dir, cacheDir);
+
+            for (int i = 0; i < libraryPath.size(); i++) {
+                libraryPath.set(i, resolve(dir, libraryPath.get(i)));
+            }
+
+            if (MODE_PKG_ORDER_FILE.equals(mode)) {
+                packageOrderData = resolve(dir, packageOrderData);
+            }
+
+            diffFilename = resolve(dir, diffFilename);
+        }
+
+        private static String resolve(File dir, String path) {
+            if (path == null || new File(path).isAbsolute()) {
+                return path;
+            }
+
+            return new File(dir, path).getPath();
+        }
+
+        /**
+         * Returns whether the run is a plain validation, without the
+         * features that need the loaded model (the catalog cache, library
+         * swcs, incremental state, --explain) or its phases (--stats), that
+         * can be checked while the catalog is parsed.
+         */
+        public boolean isPipelined() {
+            return (MODE_PKG_ORDER.equals(mode) || MODE_PKG_ORDER_FILE
+                    .equals(mode))
+                    && cacheDir == null
+                    && libraryPath.isEmpty()
+                    && stateFilename == null
+                    && !explain
+                    && memoryBudget == 0 && statsFormat == null;
+        }
+
+        /**
+         * Returns whether the run can use --memory-budget: a package report
+         * or a plain validation. Features that need the loaded model (the
+         * catalog cache, library swcs, incremental state, --explain) cannot.
+         */
+        private boolean isExternal() {
+            return (MODE_PKG_REPORT.equals(mode)
+                    || MODE_PKG_ORDER.equals(mode) || MODE_PKG_ORDER_FILE
+                    .equals(mode))
+                    && cacheDir == null
+                    && libraryPath.isEmpty()
+                    && stateFilename == null && !explain;
+        }
+
+        private static int parseInt(String s) {
+            try {
+                return Integer.parseInt(s);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
         public boolean isValid() {
-            if (swcFilename == null) {
+            if (threads < 1 || cacheMaxAge < 0 || cacheMaxSize < 0
+                    || memoryBudget < 0
+                    || !PackageReport.isFormat(reportFormat)
+                    || !libraryPathValid) {
+                return false;
+            } else if (memoryBudget > 0 && !isExternal()) {
+                return false;
+            } else if (MODE_BATCH.equals(mode)) {
+                // Options of single swc runs cannot be used in a batch.
+                return batchFilename != null && swcFilename == null && !watch
+                        && libraryPath.isEmpty() && stateFilename == null
+                        && !explain && statsFormat == null;
+            } else if (MODE_SERVER.equals(mode)) {
+                return port >= 0 && swcFilename == null && !watch;
+            } else if (swcFilename == null) {
+                return false;
+            } else if (watch && STDIN.equals(swcFilename)) {
                 return false;
             } else if (mode == null) {
                 return false;
+            } else if (mode.equals(MODE_CHECK_CATALOG)) {
+                // library.swf is read from the swc file itself.
+                return !STDIN.equals(swcFilename);
+            } else if (mode.equals(MODE_DIFF)) {
+                return diffFilename != null && !STDIN.equals(diffFilename);
             } else if (mode.equals(MODE_PKG_ORDER)
                     || mode.equals(MODE_PKG_ORDER_FILE)) {
                 if (packageOrderData == null) {
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a validation whenever the files it reads change (--watch).
+ * 
+ * The directories of the files are watched with a WatchService. A change
+ * starts a quiet period: the validation runs once no watched file has been
+ * written for QUIET_MILLIS, so a compiler writing a SWC in several steps
+ * triggers one run, after it has finished. Events that leave every file's
+ * size and modification time as they were at the last run are ignored.
+ * 
+ * The validation is expected to keep its models warm between runs (see
+ * ModelCache), so that only a changed file is loaded again.
+ */
+class SwcWatcher {
+    private static final long QUIET_MILLIS = 100;
+
+    private File[] files;
+    private PrintStream out;
+
+    public SwcWatcher(List<String> files, PrintStream out) {
+        this.files = new File[files.size()];
+        this.out = out;
+
+        for (int i = 0; i < this.files.length; i++) {
+            this.files[i] = new File(files.get(i)).getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Runs validation now and after every change, until the thread is
+     * interrupted.
+     * 
+     * @return the exit code, if the files could not be watched
+     */
+    public int watch(Callable<Integer> validation) {
+        WatchService watcher;
+        Set<Path> names = new HashSet<Path>();
+
+        try {
+            Set<Path> dirs = new HashSet<Path>();
+
+            watcher = FileSystems.getDefault().newWatchService();
+
+            for (File f : files) {
+                Path path = f.toPath();
+
+                names.add(path);
+
+                if (dirs.add(path.getParent())) {
+                    path.getParent().register(watcher,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+        } catch (Exception e) {
+            out.println("Error watching files: " + e.getMessage());
+            return 1;
+        }
+
+        try {
+            String last = null;
+
+            while (true) {
+                String signature = getSignature();
+
+                if (!signature.equals(last)) {
+                    last = signature;
+                    run(validation);
+                }
+
+                waitForChange(watcher, names);
+            }
+        } catch (InterruptedException e) {
+            return 0;
+        } finally {
+            try {
+                watcher.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+
+    private void run(Callable<Integer> validation) {
+        long start = System.nanoTime();
+        int code;
+
+        try {
+            code = validation.call().intValue();
+        } catch (Exception e) {
+            out.println("Error: " + e.getMessage());
+            code = 1;
+        }
+
+        out.println("swcv: " + ((code == 0) ? "passed" : "failed") + " in "
+                + (System.nanoTime() - start) / 1000000
+                + " ms; watching for changes.");
+        out.flush();
+    }
+
+    /**
+     * Waits for a watched file to change, then for the quiet period.
+     */
+    private static void waitForChange(WatchService watcher, Set<Path> names)
+            throws InterruptedException {
+        while (!isChange(watcher.take(), names)) {
+            // keep waiting
+        }
+
+        WatchKey key;
+
+        while ((key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+            isChange(key, names);
+        }
+    }
+
+    /**
+     * Returns true if a key has events for watched files. The key is reset.
+     */
+    private static boolean isChange(WatchKey key, Set<Path> names) {
+        Path dir = (Path) key.watchable();
+        boolean change = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || names.contains(dir.resolve((Path) event.context()))) {
+                change = true;
+            }
+        }
+
+        key.reset();
+        return change;
+    }
+
+    private String getSignature() {
+        StringBuilder buf = new StringBuilder();
+
+        for (File f : files) {
+            buf.append(f.length()).append('|').append(f.lastModified())
+                    .append('|');
+        }
+
+        return buf.toString();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streams the ABC (ActionScript bytecode) blocks out of a SWF, such as the
+ * library.swf of a SWC.
+ * 
+ * The SWF is read front to back, once: a compressed (CWS) SWF is inflated
+ * as it is read, and every tag but DoABC is skipped. Only one DoABC tag is
+ * held at a time. For an uncompressed SWF read from a
+ * ByteBufferInputStream (a stored, mapped SWC entry), the tag is a view of
+ * the mapped data and nothing is copied; otherwise it is read into a buffer
+ * that is reused for the next tag. Memory use is therefore bounded by the
+ * largest DoABC tag, not by the size of the SWF.
+ */
+class SwfReader {
+    private static final int TAG_END = 0;
+    private static final int TAG_DO_ABC_1 = 72;
+    private static final int TAG_DO_ABC = 82;
+
+    private InputStream in;
+    private ByteBuffer buffer;
+    private String name;
+    private int abcCount;
+
+    public SwfReader(InputStream inputStream) throws Exception {
+        byte[] header = new byte[8];
+
+        readFully(inputStream, header, header.length);
+
+        String signature = new String(header, 0, 3, "US-ASCII");
+
+        if ("FWS".equals(signature)) {
+            in = inputStream;
+        } else if ("CWS".equals(signature)) {
+            in = new InflaterInputStream(inputStream);
+        } else if ("ZWS".equals(signature)) {
+            throw new Exception("LZMA compressed SWFs are not supported.");
+        } else {
+            throw new Exception("Not a SWF file.");
+        }
+
+        // The frame size RECT: 5 bits giving the bit size of each of its
+        // four fields. Then frame rate and frame count.
+        int first = read();
+        int bits = 5 + 4 * (first >>> 3);
+
+        skip((bits + 7) / 8 - 1 + 4);
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Returns the ABC data of the next DoABC tag, in little endian order,
+     * or null at the end of the SWF. The buffer is only valid until the
+     * next call. A DoABC tag too short for its header is reported with its
+     * number, from 1 in SWF order.
+     */
+    public ByteBuffer nextAbc() throws IOException {
+        while (true) {
+            int header = read() | (read() << 8);
+            int code = header >>> 6;
+            long length = header & 0x3f;
+
+            if (length == 0x3f) {
+                length = (read() | (read() << 8) | (read() << 16) | ((long) read() << 24));
+            }
+
+            if (code == TAG_END) {
+                return null;
+            } else if (code == TAG_DO_ABC || code == TAG_DO_ABC_1) {
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("DoABC tag too large.");
+                }
+
+                ByteBuffer tag = readTag((int) length);
+
+                name = null;
+                abcCount++;
+
+                if (code == TAG_DO_ABC) {
+                    // u32 flags, then a null terminated name.
+                    if (tag.remaining() < 4) {
+                        throw new IOException("Bad DoABC tag " + abcCount
+                                + ": too short for its flags.");
+                    }
+
+                    tag.position(4);
+
+                    int start = tag.position();
+
+                    while (tag.hasRemaining() && tag.get() != 0) {
+                        // find the end of the name
+                    }
+
+                    if (tag.position() == start
+                            || tag.get(tag.position() - 1) != 0) {
+                        throw new IOException("Bad DoABC tag " + abcCount
+                                + ": its name is not null terminated.");
+                    }
+
+                    byte[] b = new byte[tag.position() - start - 1];
+
+                    tag.position(start);
+                    tag.get(b);
+                    tag.get();
+                    name = new String(b, "UTF-8");
+                }
+
+                return tag.slice().order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                skip(length);
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the last DoABC tag, or null for a DoABC tag
+     * without one.
+     */
+    public String getName() {
+        return name;
+    }
+
+    private ByteBuffer readTag(int length) throws IOException {
+        if (in instanceof SwcArchive.ByteBufferInputStream) {
+            return ((SwcArchive.ByteBufferInputStream) in).slice(length);
+        }
+
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(Math.max(length,
+                    buffer.capacity() * 2));
+        }
+
+        readFully(in, buffer.array(), length);
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    private int read() throws IOException {
+        int b = in.read();
+
+        if (b == -1) {
+            throw new EOFException("Unexpected end of SWF.");
+        }
+
+        return b;
+    }
+
+    private void skip(long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+
+            if (skipped <= 0) {
+                read();
+                skipped = 1;
+            }
+
+            n -= skipped;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b, int length)
+            throws IOException {
+        int n = 0;
+
+        while (n < length) {
+            int r = in.read(b, n, length - n);
+
+            if (r == -1) {
+                throw new EOFException("Unexpected end of SWF.");
+            }
+
+            n += r;
+        }
+    }
+}
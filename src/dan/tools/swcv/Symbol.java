@@ -27,24 +27,52 @@ package dan.tools.swcv;
  * symbol (constants, classes or functions).
  */
 public class Symbol {
+    private int id;
     private String name;
+    private int packageId;
     private String packageName;
 
     public Symbol(String name, String pkg) {
+        this(-1, name, -1, pkg);
+    }
+
+    /**
+     * Creates a symbol interned in a SymbolTable.
+     */
+    Symbol(int id, String name, int packageId, String pkg) {
+        this.id = id;
         this.name = name;
+        this.packageId = packageId;
         this.packageName = pkg;
     }
 
+    /**
+     * The symbol's id in its SymbolTable, or -1 if it was not interned.
+     */
+    public int getId() {
+        return id;
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * The id of the symbol's package name in its SymbolTable, or -1 if the
+     * symbol was not interned.
+     */
+    public int getPackageId() {
+        return packageId;
+    }
+
     public String getPackageName() {
         return packageName;
     }
 
     public boolean equals(Object obj) {
-        if (obj instanceof Symbol) {
+        if (obj == this) {
+            return true;
+        } else if (obj instanceof Symbol) {
             Symbol other = (Symbol) obj;
             return name.equals(other.name) && packageName.equals(other.packageName);
         } else {
@@ -52,6 +80,10 @@ public class Symbol {
         }
     }
 
+    public int hashCode() {
+        return 31 * packageName.hashCode() + name.hashCode();
+    }
+
     public String toString() {
         return packageName + ":" + name;
     }
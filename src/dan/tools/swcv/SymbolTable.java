@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Interns the symbols and package names read from a SWC.
+ * 
+ * Every distinct symbol and package name is stored once and assigned a
+ * dense int id, in the order it was first seen. Scripts that refer to the
+ * same symbol share one canonical Symbol instance, so memory use scales
+ * with the number of unique symbols rather than the number of def and dep
+ * entries in the catalog.
+ */
+class SymbolTable {
+    private static final String DEFAULT_PACKAGE = "default";
+
+    // findSeparator() result for an id that is only colons or has more than
+    // two fields.
+    private static final int MALFORMED = -2;
+
+    private HashMap<String, Symbol> symbolsById;
+    private ArrayList<Symbol> symbols;
+    private HashMap<String, Integer> packageIds;
+    private ArrayList<String> packageNames;
+
+    public SymbolTable() {
+        symbolsById = new HashMap<String, Symbol>();
+        symbols = new ArrayList<Symbol>();
+        packageIds = new HashMap<String, Integer>();
+        packageNames = new ArrayList<String>();
+    }
+
+    /**
+     * Returns the canonical symbol for a catalog id, ex. "pkg.a:ClassA" or
+     * "ClassB" (default package).
+     */
+    public Symbol intern(String id) {
+        Symbol symbol = symbolsById.get(id);
+
+        if (symbol == null) {
+            symbol = createSymbol(id);
+            symbolsById.put(id, symbol);
+        }
+
+        return symbol;
+    }
+
+    /**
+     * Returns the canonical symbol for a catalog id, or null if the table
+     * does not contain it. The table is not modified, so a table that is no
+     * longer being loaded can be searched by several threads.
+     */
+    public Symbol find(String id) {
+        Symbol symbol = symbolsById.get(id);
+
+        if (symbol == null && id.indexOf(':') == -1) {
+            symbol = symbolsById.get(DEFAULT_PACKAGE + ":" + id);
+        }
+
+        return symbol;
+    }
+
+    /**
+     * Returns the id of a package name, adding it to the table if needed.
+     */
+    public int internPackage(String packageName) {
+        Integer id = packageIds.get(packageName);
+
+        if (id == null) {
+            id = Integer.valueOf(packageNames.size());
+            packageIds.put(packageName, id);
+            packageNames.add(packageName);
+        }
+
+        return id.intValue();
+    }
+
+    /**
+     * Returns the id of a package name, or -1 if the table does not contain
+     * it.
+     */
+    public int findPackage(String packageName) {
+        Integer id = packageIds.get(packageName);
+        return (id != null) ? id.intValue() : -1;
+    }
+
+    /**
+     * Adds a symbol that is known not to be in the table yet, ex. when
+     * restoring a table that was saved in symbol id order.
+     */
+    public Symbol add(int packageId, String name) {
+        String pkg = packageNames.get(packageId);
+        Symbol symbol = new Symbol(symbols.size(), name, packageId, pkg);
+
+        symbols.add(symbol);
+        symbolsById.put(pkg + ":" + name, symbol);
+
+        return symbol;
+    }
+
+    public Symbol getSymbol(int id) {
+        return symbols.get(id);
+    }
+
+    public int getSymbolCount() {
+        return symbols.size();
+    }
+
+    public String getPackageName(int id) {
+        return packageNames.get(id);
+    }
+
+    public int getPackageCount() {
+        return packageNames.size();
+    }
+
+    /**
+     * Returns the package name of a catalog id. Ids without a package are in
+     * the default package.
+     */
+    static String getPackageName(String id) {
+        int end = getNameEnd(id);
+        return getPackageName(id, findSeparator(id, end));
+    }
+
+    /**
+     * Returns a catalog id in the "pkg:name" form that symbols print as,
+     * ex. "default:Object" for "Object".
+     */
+    static String getCanonicalId(String id) {
+        int end = getNameEnd(id);
+        int colon = findSeparator(id, end);
+
+        if (colon >= 0 && end == id.length()) {
+            return id;
+        }
+
+        return getPackageName(id, colon) + ":" + getName(id, colon, end);
+    }
+
+    /**
+     * Returns the end of the symbol name of a catalog id. Same result as the
+     * old id.split(":"), without the regex or the intermediate array:
+     * trailing empty fields are ignored.
+     */
+    private static int getNameEnd(String id) {
+        int end = id.length();
+
+        while (end > 0 && id.charAt(end - 1) == ':') {
+            end--;
+        }
+
+        return end;
+    }
+
+    /**
+     * Returns the index of the colon between the package name and the
+     * symbol name of a catalog id whose name ends at end, -1 if the id has
+     * no package, or MALFORMED.
+     */
+    private static int findSeparator(String id, int end) {
+        int colon = id.indexOf(':');
+
+        if (end == 0 && id.length() > 0) {
+            // error?
+            return MALFORMED;
+        } else if (colon < 0 || colon >= end) {
+            return -1;
+        }
+
+        int next = id.indexOf(':', colon + 1);
+
+        if (next >= 0 && next < end) {
+            // error?
+            return MALFORMED;
+        }
+
+        return colon;
+    }
+
+    private static String getPackageName(String id, int colon) {
+        if (colon == MALFORMED) {
+            return "";
+        }
+
+        return (colon == -1) ? DEFAULT_PACKAGE : id.substring(0, colon);
+    }
+
+    private static String getName(String id, int colon, int end) {
+        return (colon == MALFORMED) ? "" : id.substring(colon + 1, end);
+    }
+
+    private Symbol createSymbol(String id) {
+        int end = getNameEnd(id);
+        int colon = findSeparator(id, end);
+        int packageId = internPackage(getPackageName(id, colon));
+        String pkg = packageNames.get(packageId);
+        String name = getName(id, colon, end);
+
+        // Different ids can name the same symbol ("Object" and
+        // "default:Object"); they share the canonical instance.
+        Symbol symbol = (colon >= 0 && end == id.length()) ? null
+                : symbolsById.get(pkg + ":" + name);
+
+        if (symbol == null) {
+            symbol = add(packageId, name);
+        }
+
+        return symbol;
+    }
+}
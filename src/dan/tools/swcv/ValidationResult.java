@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of validating a SWC against a package order or layer rules
+ * (see SwcValidator.validate).
+ * 
+ * A fail-fast validation stops at the first problem: the result then holds
+ * either the first package the rules do not cover or the first violation,
+ * and isComplete() is false. A validation of all violations lists every
+ * uncovered package and every violation. Results are immutable.
+ */
+public class ValidationResult {
+    private List<String> missingPackages;
+    private List<Violation> violations;
+    private boolean complete;
+
+    ValidationResult(List<String> missingPackages, List<Violation> violations,
+            boolean complete) {
+        this.missingPackages = Collections.unmodifiableList(missingPackages);
+        this.violations = Collections.unmodifiableList(violations);
+        this.complete = complete;
+    }
+
+    /**
+     * Returns true if every package is covered by the rules and no
+     * dependency breaks them.
+     */
+    public boolean isValid() {
+        return missingPackages.isEmpty() && violations.isEmpty();
+    }
+
+    /**
+     * Returns false if the validation stopped at the first problem.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * The SWC packages the rules do not rank, in package name order.
+     */
+    public List<String> getMissingPackages() {
+        return missingPackages;
+    }
+
+    /**
+     * The dependencies that break the rules, grouped by package in package
+     * name order, then in symbol order.
+     */
+    public List<Violation> getViolations() {
+        return violations;
+    }
+}
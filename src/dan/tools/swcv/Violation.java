@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 by Daniel Anderson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package dan.tools.swcv;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A dependency that breaks the package dependency order: a package that
+ * uses a symbol it is not allowed to use.
+ */
+public class Violation {
+    private String packageName;
+    private Symbol symbol;
+    private List<Symbol> classes;
+
+    public Violation(String packageName, Symbol symbol) {
+        this(packageName, symbol, Collections.<Symbol> emptyList());
+    }
+
+    public Violation(String packageName, Symbol symbol, List<Symbol> classes) {
+        this.packageName = packageName;
+        this.symbol = symbol;
+        this.classes = Collections.unmodifiableList(classes);
+    }
+
+    /**
+     * The package that uses the symbol.
+     */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * The symbol that the package cannot import or use.
+     */
+    public Symbol getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * The classes (script defs) of the package that use the symbol, in name
+     * order. Empty if they were not looked up.
+     */
+    public List<Symbol> getClasses() {
+        return classes;
+    }
+
+    public String toString() {
+        return packageName + " -> " + symbol;
+    }
+}